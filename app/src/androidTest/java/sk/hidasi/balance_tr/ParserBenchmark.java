@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+
+import sk.hidasi.balance_tr.core.BalanceParser;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Parsing of the balance responses by {@link BalanceParser}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParserBenchmark {
+
+	private static final byte[] RESPONSE = "{\"result\":true,\"balance\":\"123,45\"}".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] RESPONSE_REJECTED = "{\"result\":false,\"message\":\"Card not found\"}".getBytes(StandardCharsets.UTF_8);
+	// the balance after fields the parser skips
+	private static final byte[] RESPONSE_LONG = ("{\"result\":true,\"card\":{\"serial\":\"0000000000\",\"expires\":\"2030-12\","
+			+ "\"transactions\":[{\"amount\":-4.5,\"place\":\"Bistro\"},{\"amount\":-6.2,\"place\":\"Canteen\"},"
+			+ "{\"amount\":120.0,\"place\":\"Top-up\"}]},\"balance\":109.3}").getBytes(StandardCharsets.UTF_8);
+
+	@Rule
+	public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+	@Test
+	public void parseBalance() {
+		benchmark(RESPONSE);
+	}
+
+	@Test
+	public void parseRejected() {
+		benchmark(RESPONSE_REJECTED);
+	}
+
+	@Test
+	public void parseSkippedFields() {
+		benchmark(RESPONSE_LONG);
+	}
+
+	private void benchmark(final byte[] response) {
+		assertNotNull(BalanceParser.parse(response));
+		final BenchmarkState state = mBenchmarkRule.getState();
+		while (state.keepRunning()) {
+			BalanceParser.parse(response);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.List;
+
+import sk.hidasi.balance_tr.core.BalanceResult;
+
+/**
+ * Rendering of the widget views by {@link WidgetRenderer} for each theme. The balance changes
+ * in every iteration, so each frame is drawn instead of being served from the frame cache.
+ */
+@RunWith(Parameterized.class)
+public class RenderBenchmark {
+
+	@Parameterized.Parameters(name = "{0}")
+	public static List<Object[]> getThemes() {
+		return Arrays.asList(new Object[][]{
+				{"light", false, false},
+				{"dark", true, false},
+				{"lightText", false, true},
+				{"darkText", true, true},
+		});
+	}
+
+	@Rule
+	public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+	private final boolean mDarkTheme;
+	private final boolean mTextMode;
+
+	public RenderBenchmark(final String name, boolean darkTheme, boolean textMode) {
+		mDarkTheme = darkTheme;
+		mTextMode = textMode;
+	}
+
+	@Test
+	public void createViews() {
+		final Context context = ApplicationProvider.getApplicationContext();
+		final WidgetState widgetState = new WidgetState(Integer.MAX_VALUE);
+		widgetState.darkTheme = mDarkTheme;
+		widgetState.textMode = mTextMode;
+		long cents = 0;
+		final BenchmarkState state = mBenchmarkRule.getState();
+		while (state.keepRunning()) {
+			widgetState.text = BalanceResult.format(cents++);
+			WidgetRenderer.createViews(context, widgetState, WidgetRenderer.getFrameKey(context, widgetState));
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import sk.hidasi.balance_tr.core.Backoff;
+
+/**
+ * Retry delays computed by {@link Backoff} and automatic refresh intervals computed by
+ * {@link AdaptivePolling} from eight weeks of balance history.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScheduleBenchmark {
+
+	private static final String CARD_KEY = "0000000000:0000";
+	private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+	private static final int HISTORY_HOURS = 8 * 7 * 24;
+
+	@Rule
+	public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+	private Context mContext;
+	private long mNowMillis;
+
+	@Before
+	public void setUp() {
+		mContext = ApplicationProvider.getApplicationContext();
+		mNowMillis = System.currentTimeMillis();
+		// hourly samples, a purchase around every lunch and a top-up each month
+		final Random random = new Random(1);
+		long cents = 10000;
+		for (int hour = HISTORY_HOURS; hour > 0; hour--) {
+			final long millis = mNowMillis - hour * HOUR_MILLIS;
+			if (hour % 24 == 12 && random.nextInt(4) != 0) {
+				cents -= 300 + random.nextInt(500);
+			}
+			if (hour % (30 * 24) == 0) {
+				cents += 10000;
+			}
+			BalanceHistory.append(mContext, CARD_KEY, millis, cents, false);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		BalanceHistory.clear(mContext);
+		AdaptivePolling.clear(mContext);
+	}
+
+	@Test
+	public void backoffDelay() {
+		final Random random = new Random(1);
+		final Backoff.ErrorClass[] errors = Backoff.ErrorClass.values();
+		int failures = 0;
+		final BenchmarkState state = mBenchmarkRule.getState();
+		while (state.keepRunning()) {
+			final Backoff.ErrorClass error = errors[failures % errors.length];
+			Backoff.getDelayMillis(error, failures % 10 + 1, random);
+			Backoff.shouldOpenCircuit(error, failures % 10 + 1);
+			failures++;
+		}
+	}
+
+	@Test
+	public void adaptiveInterval() {
+		AdaptivePolling.getIntervalSeconds(mContext, CARD_KEY, WidgetState.DEFAULT_DAILY_BUDGET, mNowMillis);
+		final BenchmarkState state = mBenchmarkRule.getState();
+		while (state.keepRunning()) {
+			AdaptivePolling.getIntervalSeconds(mContext, CARD_KEY, WidgetState.DEFAULT_DAILY_BUDGET, mNowMillis);
+		}
+	}
+
+	@Test
+	public void adaptiveStats() {
+		final BenchmarkState state = mBenchmarkRule.getState();
+		while (state.keepRunning()) {
+			state.pauseTiming();
+			AdaptivePolling.clear(mContext);
+			state.resumeTiming();
+			AdaptivePolling.getIntervalSeconds(mContext, CARD_KEY, WidgetState.DEFAULT_DAILY_BUDGET, mNowMillis);
+		}
+	}
+}
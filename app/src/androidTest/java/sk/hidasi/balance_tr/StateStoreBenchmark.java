@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.List;
+
+import sk.hidasi.balance_tr.core.BalanceResult;
+
+/**
+ * Loading and saving the states of 1, 10 and 100 widgets by {@link WidgetStateStore},
+ * including the file reads and writes.
+ */
+@RunWith(Parameterized.class)
+public class StateStoreBenchmark {
+
+	// far from the ids the widget host assigns
+	private static final int FIRST_WIDGET_ID = 1000000;
+
+	@Parameterized.Parameters(name = "widgets={0}")
+	public static List<Object[]> getWidgetCounts() {
+		return Arrays.asList(new Object[][]{{1}, {10}, {100}});
+	}
+
+	@Rule
+	public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+	private final int mWidgetCount;
+	private Context mContext;
+
+	public StateStoreBenchmark(int widgetCount) {
+		mWidgetCount = widgetCount;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		mContext = ApplicationProvider.getApplicationContext();
+		// the ids are reused by every run, which deletes them in tearDown
+		WidgetStateStore.clearDeleted();
+		for (int i = 0; i < mWidgetCount; i++) {
+			final WidgetState state = new WidgetState(FIRST_WIDGET_ID + i);
+			state.serial = "0000000000";
+			state.fourDigits = "0000";
+			state.text = BalanceResult.format(1230);
+			state.lastUpdateSuccess = System.currentTimeMillis();
+			WidgetStateStore.save(mContext, state);
+		}
+		WidgetStateStore.awaitWrites();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (int i = 0; i < mWidgetCount; i++) {
+			WidgetStateStore.delete(mContext, FIRST_WIDGET_ID + i);
+		}
+		WidgetStateStore.awaitWrites();
+	}
+
+	@Test
+	public void load() throws Exception {
+		final BenchmarkState state = mBenchmarkRule.getState();
+		while (state.keepRunning()) {
+			state.pauseTiming();
+			WidgetStateStore.evict();
+			state.resumeTiming();
+			for (int i = 0; i < mWidgetCount; i++) {
+				WidgetStateStore.get(mContext, FIRST_WIDGET_ID + i);
+			}
+		}
+	}
+
+	@Test
+	public void save() throws Exception {
+		long cents = 0;
+		final BenchmarkState state = mBenchmarkRule.getState();
+		while (state.keepRunning()) {
+			for (int i = 0; i < mWidgetCount; i++) {
+				final WidgetState widgetState = WidgetStateStore.get(mContext, FIRST_WIDGET_ID + i);
+				widgetState.text = BalanceResult.format(cents++);
+				WidgetStateStore.save(mContext, widgetState);
+			}
+			WidgetStateStore.awaitWrites();
+		}
+	}
+}
@@ -66,6 +66,10 @@ public class AboutActivity extends AppCompatActivity {
         }
     }
 
+    public void onDiagnostics(@NonNull View view) {
+        startActivity(new Intent(this, DiagnosticsActivity.class));
+    }
+
     public void onRestoreLauncherIcon(@NonNull View view) {
         AlertDialog.Builder dlgAlert  = new AlertDialog.Builder(this);
         dlgAlert.setTitle(R.string.restore_launcher_icon);
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Update interval of widgets set to automatic updates. The changes recorded in the
+ * {@link BalanceHistory} of the card give an expected rate of changes for every hour:
+ * purchases are counted per hour of the week (lunch on weekdays), top-ups per day of the
+ * month. The daily request budget is spread over the next 24 hours in proportion to these
+ * rates, so the card is polled densely when a change is likely and rarely otherwise.
+ * A hard daily counter keeps the automatic refreshes within the budget.
+ */
+class AdaptivePolling {
+
+	private static final String PREFS_NAME = "sk.hidasi.balance_tr.AdaptivePolling";
+	private static final String PREF_PREFIX_DAY = "auto_day_";
+	private static final String PREF_PREFIX_COUNT = "auto_count_";
+
+	private static final int HOURS_PER_WEEK = 7 * 24;
+	private static final int DAYS_PER_MONTH = 31;
+	private static final long HOUR_MILLIS = 60 * 60 * 1000;
+	private static final long WEEK_MILLIS = 7 * 24 * HOUR_MILLIS;
+	private static final int LEARNING_WEEKS = 8;
+	private static final float WEEKS_PER_MONTH = 4.35f;
+	// changes per hour assumed for every hour, so no hour is left without polling
+	private static final float PRIOR_RATE = 0.01f;
+	private static final long MIN_INTERVAL_SECONDS = 5 * 60;
+	private static final long MAX_INTERVAL_SECONDS = 6 * 60 * 60;
+	private static final long STATS_MAX_AGE_MILLIS = HOUR_MILLIS;
+
+	/**
+	 * Expected changes per hour, learned from the balance history.
+	 */
+	private static class Stats {
+		final float[] purchaseRates = new float[HOURS_PER_WEEK];
+		final float[] topUpRates = new float[DAYS_PER_MONTH];
+		long computedMillis;
+	}
+
+	private static final Map<String, Stats> mStats = new HashMap<>();
+	private static final Calendar mCalendar = Calendar.getInstance();
+
+	/**
+	 * @return seconds to the next automatic refresh of the card
+	 */
+	static synchronized long getIntervalSeconds(final Context context, final String cardKey, int dailyBudget, long nowMillis) {
+		final Stats stats = getStats(context, cardKey, nowMillis);
+		float dayRate = 0;
+		for (int hour = 0; hour < 24; hour++) {
+			dayRate += getRate(stats, nowMillis + hour * HOUR_MILLIS);
+		}
+		// polls per hour now = budget * share of the expected changes of the next 24 hours
+		final float pollsPerHour = dailyBudget * getRate(stats, nowMillis) / dayRate;
+		final long seconds = (long) (3600 / pollsPerHour);
+		return Math.max(MIN_INTERVAL_SECONDS, Math.min(MAX_INTERVAL_SECONDS, seconds));
+	}
+
+	/**
+	 * @return true if the automatic refreshes of today used up the budget
+	 */
+	static synchronized boolean isOverBudget(final Context context, final String cardKey, int dailyBudget, long nowMillis) {
+		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
+		return prefs.getInt(PREF_PREFIX_DAY + cardKey, -1) == getDay(nowMillis)
+				&& prefs.getInt(PREF_PREFIX_COUNT + cardKey, 0) >= dailyBudget;
+	}
+
+	static synchronized void recordRequest(final Context context, final String cardKey, long nowMillis) {
+		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
+		final int day = getDay(nowMillis);
+		final int count = prefs.getInt(PREF_PREFIX_DAY + cardKey, -1) == day ? prefs.getInt(PREF_PREFIX_COUNT + cardKey, 0) : 0;
+		prefs.edit()
+				.putInt(PREF_PREFIX_DAY + cardKey, day)
+				.putInt(PREF_PREFIX_COUNT + cardKey, count + 1)
+				.apply();
+	}
+
+	/**
+	 * @return seconds to the local midnight, when a new budget starts
+	 */
+	static synchronized long getSecondsToNextDay(long nowMillis) {
+		mCalendar.setTimeInMillis(nowMillis);
+		mCalendar.add(Calendar.DAY_OF_YEAR, 1);
+		mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+		mCalendar.set(Calendar.MINUTE, 0);
+		mCalendar.set(Calendar.SECOND, 0);
+		mCalendar.set(Calendar.MILLISECOND, 0);
+		return Math.max(MIN_INTERVAL_SECONDS, (mCalendar.getTimeInMillis() - nowMillis) / 1000);
+	}
+
+	static synchronized void clear(final Context context) {
+		mStats.clear();
+		context.getSharedPreferences(PREFS_NAME, 0).edit().clear().apply();
+	}
+
+	private static float getRate(final Stats stats, long millis) {
+		mCalendar.setTimeInMillis(millis);
+		final int hourOfWeek = (mCalendar.get(Calendar.DAY_OF_WEEK) - 1) * 24 + mCalendar.get(Calendar.HOUR_OF_DAY);
+		final int dayOfMonth = mCalendar.get(Calendar.DAY_OF_MONTH) - 1;
+		return PRIOR_RATE + stats.purchaseRates[hourOfWeek] + stats.topUpRates[dayOfMonth];
+	}
+
+	private static int getDay(long millis) {
+		mCalendar.setTimeInMillis(millis);
+		return mCalendar.get(Calendar.YEAR) * 1000 + mCalendar.get(Calendar.DAY_OF_YEAR);
+	}
+
+	private static Stats getStats(final Context context, final String cardKey, long nowMillis) {
+		Stats stats = mStats.get(cardKey);
+		if (stats == null || nowMillis - stats.computedMillis > STATS_MAX_AGE_MILLIS || nowMillis < stats.computedMillis) {
+			stats = computeStats(context, cardKey, nowMillis);
+			mStats.put(cardKey, stats);
+		}
+		return stats;
+	}
+
+	private static Stats computeStats(final Context context, final String cardKey, long nowMillis) {
+		final Stats stats = new Stats();
+		final int[] purchases = new int[HOURS_PER_WEEK];
+		final int[] topUps = new int[DAYS_PER_MONTH];
+		// previous balance and timestamp of the first sample
+		final long[] previous = {Long.MIN_VALUE, 0};
+		final Calendar calendar = Calendar.getInstance();
+		BalanceHistory.query(context, cardKey, nowMillis - LEARNING_WEEKS * WEEK_MILLIS, nowMillis, (millis, cents) -> {
+			if (previous[0] == Long.MIN_VALUE) {
+				previous[1] = millis;
+			} else if (cents != previous[0]) {
+				calendar.setTimeInMillis(millis);
+				if (cents > previous[0]) {
+					topUps[calendar.get(Calendar.DAY_OF_MONTH) - 1]++;
+				} else {
+					purchases[(calendar.get(Calendar.DAY_OF_WEEK) - 1) * 24 + calendar.get(Calendar.HOUR_OF_DAY)]++;
+				}
+			}
+			previous[0] = cents;
+		});
+		if (previous[0] != Long.MIN_VALUE) {
+			// each hour of the week occurs once per observed week, each day of the month once per month
+			final float weeks = Math.max(1f, (float) (nowMillis - previous[1]) / WEEK_MILLIS);
+			for (int i = 0; i < HOURS_PER_WEEK; i++) {
+				stats.purchaseRates[i] = purchases[i] / weeks;
+			}
+			final float months = Math.max(1f, weeks / WEEKS_PER_MONTH);
+			for (int i = 0; i < DAYS_PER_MONTH; i++) {
+				stats.topUpRates[i] = topUps[i] / months / 24;
+			}
+		}
+		stats.computedMillis = nowMillis;
+		return stats;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last known balance of each card, kept in memory and persisted to disk.
+ * The cache is shared by all widgets showing the same card.
+ */
+class BalanceCache {
+
+	private static final String PREFS_NAME = "sk.hidasi.balance_tr.BalanceCache";
+	private static final String PREF_PREFIX_CENTS = "balance_cents_";
+	private static final String PREF_PREFIX_MILLIS = "balance_millis_";
+
+	static class Entry {
+		final long cents;
+		final long millis;
+
+		Entry(long cents, long millis) {
+			this.cents = cents;
+			this.millis = millis;
+		}
+
+		/**
+		 * Entries younger than the freshness window are served without a network request.
+		 * The window never exceeds half of the update interval, otherwise a periodic refresh
+		 * would always hit the cache.
+		 */
+		boolean isFresh(final Context context, long updateInSeconds, long nowMillis) {
+			final long freshSeconds = Math.min(context.getResources().getInteger(R.integer.balance_cache_fresh_seconds), updateInSeconds / 2);
+			final long age = nowMillis - millis;
+			return age >= 0 && age < freshSeconds * 1000;
+		}
+	}
+
+	private static final Map<String, Entry> mEntries = new HashMap<>();
+
+	static synchronized Entry get(final Context context, final String cardKey) {
+		Entry entry = mEntries.get(cardKey);
+		if (entry == null && !mEntries.containsKey(cardKey)) {
+			final long readStart = Metrics.start();
+			final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
+			if (prefs.contains(PREF_PREFIX_CENTS + cardKey)) {
+				entry = new Entry(prefs.getLong(PREF_PREFIX_CENTS + cardKey, 0), prefs.getLong(PREF_PREFIX_MILLIS + cardKey, 0));
+			}
+			mEntries.put(cardKey, entry);
+			Metrics.recordSince(Metrics.STORE_READ, readStart);
+		}
+		return entry;
+	}
+
+	static synchronized void put(final Context context, final String cardKey, long cents, long millis) {
+		mEntries.put(cardKey, new Entry(cents, millis));
+		final SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, 0).edit();
+		prefs.putLong(PREF_PREFIX_CENTS + cardKey, cents);
+		prefs.putLong(PREF_PREFIX_MILLIS + cardKey, millis);
+		prefs.apply();
+	}
+
+	static synchronized void clear(final Context context) {
+		mEntries.clear();
+		context.getSharedPreferences(PREFS_NAME, 0).edit().clear().apply();
+	}
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only history of the balance of each card, one binary file per card.
+ * <p>
+ * The file starts with a magic byte and the version, followed by blocks of up to
+ * {@link #BLOCK_SAMPLES} samples. A block header holds the first sample as absolute values
+ * (timestamp in seconds, balance in cents) and the number of samples and data bytes in the block,
+ * the other samples are stored as zigzag varint deltas to the previous sample. A sample at a one
+ * minute polling interval takes about two bytes. Appending writes the new deltas and patches the
+ * block header in place, only the position of the last block is kept in memory.
+ * <p>
+ * Range queries read a memory mapped view and hop over the blocks before the range.
+ * Samples are kept for {@link #RETENTION_MILLIS}, the widgets record changes of the balance
+ * only, so the size of a file is bounded by the changes of one year. Once the oldest sample
+ * is more than {@link #COMPACT_SLACK_MILLIS} past the retention, the file is rewritten without
+ * the expired samples, i.e. at most about once a month. Timestamps are expected to increase.
+ */
+class BalanceHistory {
+
+	private static final String TAG = BalanceHistory.class.getSimpleName();
+
+	private static final String DIR_NAME = "history";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int MAGIC = 0xBA;
+	private static final int VERSION = 1;
+
+	private static final int FILE_HEADER_BYTES = 2;
+	// long seconds, long cents, unsigned short count, unsigned short data bytes
+	private static final int BLOCK_HEADER_BYTES = 20;
+	private static final int BLOCK_COUNT_OFFSET = 16;
+	private static final int BLOCK_SAMPLES = 256;
+	// two varints of at most 10 bytes each
+	private static final int MAX_SAMPLE_BYTES = 20;
+
+	// far longer than the learning window of AdaptivePolling
+	private static final long RETENTION_MILLIS = 365L * 24 * 60 * 60 * 1000;
+	private static final long COMPACT_SLACK_MILLIS = 31L * 24 * 60 * 60 * 1000;
+
+	interface Visitor {
+		void onSample(long millis, long cents);
+	}
+
+	/**
+	 * Position and last sample of the block appended to.
+	 */
+	private static class Tail {
+		long blockPos = -1;
+		int count;
+		int bytes;
+		long seconds;
+		long cents;
+		// timestamp of the oldest sample of the file
+		long firstSeconds;
+
+		long getEnd() {
+			return blockPos < 0 ? FILE_HEADER_BYTES : blockPos + BLOCK_HEADER_BYTES + bytes;
+		}
+	}
+
+	private static final Map<String, Tail> mTails = new HashMap<>();
+	private static final Map<String, String> mFileNames = new HashMap<>();
+	private static final byte[] mSampleBuffer = new byte[MAX_SAMPLE_BYTES];
+	private static File mDir;
+
+	/**
+	 * Appends a sample to the history of the card.
+	 *
+	 * @param dropUnchanged skip the sample if the balance equals the previous sample
+	 */
+	static synchronized void append(final Context context, final String cardKey, long millis, long cents, boolean dropUnchanged) {
+		final File file = getFile(context, cardKey);
+		final Tail tail = getTail(file, cardKey);
+		if (dropUnchanged && tail.blockPos >= 0 && tail.cents == cents) {
+			return;
+		}
+		final long seconds = millis / 1000;
+		final long writeStart = Metrics.start();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (tail.blockPos < 0) {
+				raf.setLength(0);
+				raf.writeByte(MAGIC);
+				raf.writeByte(VERSION);
+				tail.firstSeconds = seconds;
+			}
+			if (tail.blockPos < 0 || tail.count >= BLOCK_SAMPLES) {
+				final long blockPos = tail.getEnd();
+				raf.seek(blockPos);
+				raf.writeLong(seconds);
+				raf.writeLong(cents);
+				raf.writeShort(1);
+				raf.writeShort(0);
+				tail.blockPos = blockPos;
+				tail.count = 1;
+				tail.bytes = 0;
+			} else {
+				int length = writeVarint(mSampleBuffer, 0, zigzag(seconds - tail.seconds));
+				length = writeVarint(mSampleBuffer, length, zigzag(cents - tail.cents));
+				// data first, the header only counts the sample once it is complete
+				raf.seek(tail.getEnd());
+				raf.write(mSampleBuffer, 0, length);
+				raf.seek(tail.blockPos + BLOCK_COUNT_OFFSET);
+				raf.writeShort(tail.count + 1);
+				raf.writeShort(tail.bytes + length);
+				tail.count++;
+				tail.bytes += length;
+			}
+			tail.seconds = seconds;
+			tail.cents = cents;
+			Metrics.recordSince(Metrics.HISTORY_WRITE, writeStart);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not append history: " + e.getMessage());
+			// reload the tail from the file on the next append
+			mTails.remove(cardKey);
+			return;
+		}
+
+		if (tail.firstSeconds * 1000 < millis - RETENTION_MILLIS - COMPACT_SLACK_MILLIS) {
+			compact(file, cardKey, millis);
+		}
+	}
+
+	/**
+	 * Visits the samples of the card with a timestamp in the given range, oldest first.
+	 */
+	static synchronized void query(final Context context, final String cardKey, long fromMillis, long toMillis, final Visitor visitor) {
+		final File file = getFile(context, cardKey);
+		if (!file.exists()) {
+			return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final MappedByteBuffer buffer = map(raf);
+			if (buffer != null) {
+				visit(buffer, fromMillis, toMillis, visitor);
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.e(TAG, "Could not read history: " + e.getMessage());
+		}
+	}
+
+	static synchronized void clear(final Context context) {
+		mTails.clear();
+		final File[] files = getDir(context).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					Log.e(TAG, "Could not delete " + file);
+				}
+			}
+		}
+	}
+
+	private static void visit(final ByteBuffer buffer, long fromMillis, long toMillis, final Visitor visitor) {
+		final int size = buffer.limit();
+		int pos = FILE_HEADER_BYTES;
+		while (pos + BLOCK_HEADER_BYTES <= size) {
+			long seconds = buffer.getLong(pos);
+			long cents = buffer.getLong(pos + 8);
+			final int count = buffer.getShort(pos + BLOCK_COUNT_OFFSET) & 0xffff;
+			final int next = pos + BLOCK_HEADER_BYTES + (buffer.getShort(pos + BLOCK_COUNT_OFFSET + 2) & 0xffff);
+			if (next > size || seconds * 1000 > toMillis) {
+				return;
+			}
+			if (next + BLOCK_HEADER_BYTES <= size && buffer.getLong(next) * 1000 <= fromMillis) {
+				// the whole block is older than the range
+				pos = next;
+				continue;
+			}
+			buffer.position(pos + BLOCK_HEADER_BYTES);
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					seconds += unzigzag(readVarint(buffer));
+					cents += unzigzag(readVarint(buffer));
+				}
+				final long millis = seconds * 1000;
+				if (millis > toMillis) {
+					return;
+				}
+				if (millis >= fromMillis) {
+					visitor.onSample(millis, cents);
+				}
+			}
+			pos = next;
+		}
+	}
+
+	private static Tail getTail(final File file, final String cardKey) {
+		Tail tail = mTails.get(cardKey);
+		if (tail == null) {
+			tail = loadTail(file);
+			mTails.put(cardKey, tail);
+		}
+		return tail;
+	}
+
+	/**
+	 * Finds the last block of the file and drops a block left incomplete by an interrupted append.
+	 */
+	private static Tail loadTail(final File file) {
+		final Tail tail = new Tail();
+		if (!file.exists()) {
+			return tail;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final MappedByteBuffer buffer = map(raf);
+			if (buffer == null) {
+				return tail;
+			}
+			final int size = buffer.limit();
+			int pos = FILE_HEADER_BYTES;
+			while (pos + BLOCK_HEADER_BYTES <= size) {
+				final int bytes = buffer.getShort(pos + BLOCK_COUNT_OFFSET + 2) & 0xffff;
+				if (pos + BLOCK_HEADER_BYTES + bytes > size) {
+					break;
+				}
+				tail.blockPos = pos;
+				tail.count = buffer.getShort(pos + BLOCK_COUNT_OFFSET) & 0xffff;
+				tail.bytes = bytes;
+				pos += BLOCK_HEADER_BYTES + bytes;
+			}
+			if (tail.blockPos >= 0) {
+				tail.firstSeconds = buffer.getLong(FILE_HEADER_BYTES);
+				tail.seconds = buffer.getLong((int) tail.blockPos);
+				tail.cents = buffer.getLong((int) tail.blockPos + 8);
+				buffer.position((int) tail.blockPos + BLOCK_HEADER_BYTES);
+				for (int i = 1; i < tail.count; i++) {
+					tail.seconds += unzigzag(readVarint(buffer));
+					tail.cents += unzigzag(readVarint(buffer));
+				}
+			}
+			if (tail.getEnd() < raf.length()) {
+				raf.setLength(tail.getEnd());
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.e(TAG, "Corrupt history, starting over: " + e.getMessage());
+			return new Tail();
+		}
+		return tail;
+	}
+
+	/**
+	 * @return the mapped file, or null if the file is empty or not a history file
+	 */
+	private static MappedByteBuffer map(final RandomAccessFile raf) throws IOException {
+		final long size = raf.length();
+		if (size < FILE_HEADER_BYTES || size > Integer.MAX_VALUE) {
+			return null;
+		}
+		final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		if ((buffer.get(0) & 0xff) != MAGIC || buffer.get(1) > VERSION) {
+			return null;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Rewrites the file without the expired samples, the new file replaces the old one
+	 * only when it is complete.
+	 */
+	private static void compact(final File file, final String cardKey, long nowMillis) {
+		final File temp = new File(file.getPath() + TEMP_SUFFIX);
+		final long keepFromMillis = nowMillis - RETENTION_MILLIS;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			final MappedByteBuffer buffer = map(raf);
+			if (buffer == null) {
+				return;
+			}
+			out.writeByte(MAGIC);
+			out.writeByte(VERSION);
+			final BlockWriter writer = new BlockWriter(out);
+			visit(buffer, keepFromMillis, Long.MAX_VALUE, (millis, cents) -> writer.add(millis / 1000, cents));
+			writer.flush();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not compact history: " + e.getMessage());
+			if (temp.exists() && !temp.delete()) {
+				Log.e(TAG, "Could not delete " + temp);
+			}
+			return;
+		}
+		if (!temp.renameTo(file)) {
+			Log.e(TAG, "Could not replace " + file);
+			return;
+		}
+		mTails.put(cardKey, loadTail(file));
+		FlightRecorder.record(FlightRecorder.HISTORY_COMPACTED, file.length());
+	}
+
+	/**
+	 * Writes complete blocks to a stream, used for compaction.
+	 */
+	private static class BlockWriter {
+		private final DataOutputStream mOut;
+		private final byte[] mData = new byte[BLOCK_SAMPLES * MAX_SAMPLE_BYTES];
+		private int mCount;
+		private int mBytes;
+		private long mFirstSeconds;
+		private long mFirstCents;
+		private IOException mError;
+		private long mLastSeconds;
+		private long mLastCents;
+
+		BlockWriter(final DataOutputStream out) {
+			mOut = out;
+		}
+
+		/**
+		 * Called from a visitor, so a write error is reported by {@link #flush()}.
+		 */
+		void add(long seconds, long cents) {
+			if (mCount == 0) {
+				mFirstSeconds = seconds;
+				mFirstCents = cents;
+			} else {
+				mBytes = writeVarint(mData, mBytes, zigzag(seconds - mLastSeconds));
+				mBytes = writeVarint(mData, mBytes, zigzag(cents - mLastCents));
+			}
+			mLastSeconds = seconds;
+			mLastCents = cents;
+			if (++mCount == BLOCK_SAMPLES) {
+				try {
+					writeBlock();
+				} catch (IOException e) {
+					mError = e;
+				}
+			}
+		}
+
+		void flush() throws IOException {
+			if (mError != null) {
+				throw mError;
+			}
+			if (mCount > 0) {
+				writeBlock();
+			}
+		}
+
+		private void writeBlock() throws IOException {
+			mOut.writeLong(mFirstSeconds);
+			mOut.writeLong(mFirstCents);
+			mOut.writeShort(mCount);
+			mOut.writeShort(mBytes);
+			mOut.write(mData, 0, mBytes);
+			mCount = 0;
+			mBytes = 0;
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int writeVarint(final byte[] buffer, int offset, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte) value;
+		return offset;
+	}
+
+	private static long readVarint(final ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalStateException("Malformed varint");
+	}
+
+	private static File getDir(final Context context) {
+		if (mDir == null) {
+			mDir = new File(context.getFilesDir(), DIR_NAME);
+			if (!mDir.isDirectory() && !mDir.mkdirs()) {
+				Log.e(TAG, "Could not create " + mDir);
+			}
+		}
+		return mDir;
+	}
+
+	/**
+	 * Files are named by a hash of the card key, the card numbers do not appear in file names.
+	 */
+	private static File getFile(final Context context, final String cardKey) {
+		String name = mFileNames.get(cardKey);
+		if (name == null) {
+			name = hash(cardKey);
+			mFileNames.put(cardKey, name);
+		}
+		return new File(getDir(context), name);
+	}
+
+	private static String hash(final String cardKey) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(cardKey.getBytes("UTF-8"));
+			final StringBuilder name = new StringBuilder(16);
+			for (int i = 0; i < 8; i++) {
+				name.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException | IOException e) {
+			return Integer.toHexString(cardKey.hashCode());
+		}
+	}
+}
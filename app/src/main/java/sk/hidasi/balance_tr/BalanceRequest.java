@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import sk.hidasi.balance_tr.core.BalanceParser;
+import sk.hidasi.balance_tr.core.BalanceResult;
+
+/**
+ * Balance request parsing the raw response bytes with {@link BalanceParser}, without
+ * building a JSON tree first.
+ */
+class BalanceRequest extends Request<BalanceResult> {
+
+	private final Object mLock = new Object();
+	private final long mCreatedNanos = Metrics.start();
+	private Response.Listener<BalanceResult> mListener;
+
+	BalanceRequest(final String url, final Response.Listener<BalanceResult> listener, final Response.ErrorListener errorListener) {
+		super(Method.GET, url, errorListener);
+		mListener = listener;
+		setShouldCache(false);
+	}
+
+	long getCreatedNanos() {
+		return mCreatedNanos;
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		synchronized (mLock) {
+			mListener = null;
+		}
+	}
+
+	@Override
+	protected Response<BalanceResult> parseNetworkResponse(final NetworkResponse response) {
+		final long parseStart = Metrics.start();
+		final BalanceResult result = BalanceParser.parse(response.data);
+		Metrics.recordSince(Metrics.FETCH_PARSE, parseStart);
+		if (result == null) {
+			return Response.error(new ParseError(response));
+		}
+		// responses are never cached
+		return Response.success(result, null);
+	}
+
+	@Override
+	protected void deliverResponse(final BalanceResult response) {
+		Metrics.recordSince(Metrics.FETCH_TOTAL, mCreatedNanos);
+		final Response.Listener<BalanceResult> listener;
+		synchronized (mLock) {
+			listener = mListener;
+		}
+		if (listener != null) {
+			listener.onResponse(response);
+		}
+	}
+
+	@Override
+	public void deliverError(final VolleyError error) {
+		Metrics.recordSince(Metrics.FETCH_TOTAL, mCreatedNanos);
+		super.deliverError(error);
+	}
+}
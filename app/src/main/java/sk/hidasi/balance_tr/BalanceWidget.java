@@ -15,115 +15,58 @@
  */
 package sk.hidasi.balance_tr;
 
-import android.annotation.SuppressLint;
-import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.Typeface;
-import android.os.Handler;
+import android.os.Bundle;
 import android.os.SystemClock;
 import androidx.annotation.NonNull;
 
-import android.util.Config;
-import android.util.Log;
+import android.util.SparseArray;
 import android.widget.RemoteViews;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-
 /**
  * Implementation of App Widget functionality.
  * App Widget Configuration implemented in {@link ConfigureActivity ConfigureActivity}
  */
 public class BalanceWidget extends AppWidgetProvider {
 
-	private static final String TAG = BalanceWidget.class.getSimpleName();
-
 	public static final String ACTION_WIDGET_REFRESH = "sk.hidasi.action_widget_refresh";
 	public static final String ACTION_WIDGET_CLICK = "sk.hidasi.action_widget_click";
 	public static final String ACTION_WIDGET_CONFIG = "sk.hidasi.action_widget_config";
+	public static final String ACTION_WIDGET_SCHEDULE = "sk.hidasi.action_widget_schedule";
 
 	private static final String WIDGET_ID = "widget_id";
 	private static final long DOUBLE_CLICK_DELAY = 250;
 
-	private final Handler mHandler = new Handler();
+	// time of the last click of each widget, receiver instances do not outlive a broadcast,
+	// only accessed on the widget worker, SparseLongArray needs API 18
+	private static final SparseArray<Long> mClickMillis = new SparseArray<>();
 
 	public static void updateAppWidget(final Context context, final AppWidgetManager appWidgetManager, int appWidgetId, long nextUpdateInSeconds) {
 
-		final String widgetText = BalanceWidgetHelper.loadWidgetText(context, appWidgetId);
-		final boolean darkTheme = BalanceWidgetHelper.loadWidgetDarkTheme(context, appWidgetId);
-		final boolean updateFailed = BalanceWidgetHelper.loadWidgetUpdateFailed(context, appWidgetId);
-
-		final RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.balance_widget);
-		final Resources resources = context.getResources();
-
-		final BitmapFactory.Options opt = new BitmapFactory.Options();
-		opt.inMutable = true;
-		opt.inPreferredConfig = Bitmap.Config.ARGB_8888;
-		final Bitmap bmp = BitmapFactory.decodeResource(resources, darkTheme ? R.drawable.ic_widget_dark : R.drawable.ic_widget, opt);
-		final Canvas canvas = new Canvas(bmp);
-		final int width = canvas.getWidth();
-		final int height = canvas.getHeight();
-		canvas.drawColor(0xE6FFFFFF, PorterDuff.Mode.DST_IN);
-
-		if (widgetText != null) {
-			final Paint textPaint = new Paint();
-			textPaint.setStyle(Paint.Style.FILL);
-			textPaint.setColor(darkTheme ? Color.WHITE : Color.BLACK);
-			textPaint.setAlpha(updateFailed ? 192 : 255);
-			textPaint.setTextSize(height * 0.23f);
-			textPaint.setTextAlign(Paint.Align.CENTER);
-
-			textPaint.setAntiAlias(true);
-			textPaint.setTypeface(Typeface.DEFAULT_BOLD);
-
-			int xPos = (int) (0.54 * width);
-			int yPos = (int) (0.56 * height - (textPaint.descent() + textPaint.ascent()) / 2.);
-			canvas.drawText(widgetText, xPos, yPos, textPaint);
-
-			if (BuildConfig.DEBUG && !widgetText.equals(context.getString(R.string.widget_text_loading))) {
-				final long widgetUpdate = BalanceWidgetHelper.loadWidgetLastUpdateSuccess(context, appWidgetId);
-				if (widgetUpdate > 0) {
-					final Calendar calendar = Calendar.getInstance();
-					calendar.setTimeInMillis(widgetUpdate);
-					@SuppressLint("SimpleDateFormat")
-					final SimpleDateFormat formatter = new SimpleDateFormat("HH:mm dd.MM.yyyy");
-					final String date = formatter.format(calendar.getTime());
-					textPaint.setTextSize(height * 0.1f);
-					canvas.drawText(date, xPos, (int) (yPos + 0.3 * height), textPaint);
-				}
-			}
-		}
-
-		views.setImageViewBitmap(R.id.imageView, bmp);
+		final WidgetState state = WidgetStateStore.get(context, appWidgetId);
+		final String frameKey = WidgetRenderer.getFrameKey(context, state);
 
 		if (nextUpdateInSeconds > 0) {
-			final AlarmManager alarm = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-			if (alarm != null) {
-				final long triggerTime = SystemClock.elapsedRealtime() + nextUpdateInSeconds * 1000;
-				final PendingIntent refreshIntent = createPendingIntent(context, appWidgetId, ACTION_WIDGET_REFRESH);
-				alarm.cancel(refreshIntent);
-				alarm.set(AlarmManager.ELAPSED_REALTIME, triggerTime, refreshIntent);
-			} else {
-				Log.e(TAG, "Could not get AlarmManager system service.");
-			}
+			RefreshScheduler.schedule(context, appWidgetId, nextUpdateInSeconds);
 		}
 
+		if (!WidgetRenderer.needsUpdate(appWidgetId, frameKey)) {
+			// the widget already shows this frame, only the next update was scheduled
+			return;
+		}
+
+		final RemoteViews views = WidgetRenderer.createViews(context, state, frameKey);
+
 		final PendingIntent settingsIntent = createPendingIntent(context, appWidgetId, ACTION_WIDGET_CLICK);
 		views.setOnClickPendingIntent(R.id.imageView, settingsIntent);
 
 		// Instruct the widget manager to update the widget
 		appWidgetManager.updateAppWidget(appWidgetId, views);
+		WidgetRenderer.setSent(appWidgetId, frameKey);
 	}
 
 	@NonNull
@@ -136,18 +79,30 @@ public class BalanceWidget extends AppWidgetProvider {
 
 	@Override
 	public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-		// There may be multiple widgets active, so update all of them
-		for (int appWidgetId : appWidgetIds) {
-			updateAppWidget(context, appWidgetManager, appWidgetId, 0);
-			BalanceWidgetHelper.createHttpRequest(context, appWidgetManager, appWidgetId, false);
-		}
+		// There may be multiple widgets active, spread their refreshes instead of updating all of them at once
+		RefreshScheduler.rehydrate(context, appWidgetIds);
 	}
 
 	@Override
 	public void onDeleted(Context context, int[] appWidgetIds) {
 		// When the user deletes the widget, delete the preference associated with it.
 		for (int appWidgetId : appWidgetIds) {
-			BalanceWidgetHelper.deleteWidgetPrefs(context, appWidgetId);
+			FetchEngine.cancel(appWidgetId);
+			mClickMillis.delete(appWidgetId);
+			ConnectivityMonitor.unpark(context, appWidgetId);
+			ScreenMonitor.release(context, appWidgetId);
+			WidgetRenderer.invalidate(appWidgetId);
+			WidgetRenderer.removeSize(appWidgetId);
+			WidgetStateStore.delete(context, appWidgetId);
+		}
+		RefreshScheduler.updateAlarm(context);
+	}
+
+	@Override
+	public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager, int appWidgetId, Bundle newOptions) {
+		// redraw from the stored state, resizing never refreshes the balance
+		if (WidgetRenderer.setSize(context, appWidgetId, newOptions)) {
+			updateAppWidget(context, appWidgetManager, appWidgetId, 0);
 		}
 	}
 
@@ -158,37 +113,71 @@ public class BalanceWidget extends AppWidgetProvider {
 
 	@Override
 	public void onDisabled(Context context) {
-		// Enter relevant functionality for when the last widget is disabled
+		onProviderDisabled(context);
+	}
+
+	/**
+	 * Called when the last widget of a provider is removed. The request queue, the alarm and
+	 * the stored card data are shared by both providers.
+	 */
+	static void onProviderDisabled(final Context context) {
+		if (RefreshScheduler.getAppWidgetIds(context).length > 0) {
+			RefreshScheduler.updateAlarm(context);
+			return;
+		}
+		// Stop the shared request queue when the last widget is removed
+		FetchEngine.shutdown();
+		RefreshScheduler.cancelAlarm(context);
+		BalanceCache.clear(context);
+		BalanceHistory.clear(context);
+		AdaptivePolling.clear(context);
+		RetryTracker.clear(context);
 	}
 
 	@Override
 	public void onReceive(Context context, Intent intent) {
+		// decoding bitmaps, drawing and reading the state must not block the main thread
+		WidgetWorker.execute(this, () -> handleReceive(context, intent));
+	}
+
+	private void handleReceive(final Context context, final Intent intent) {
+		Metrics.init(context);
 		super.onReceive(context, intent);
 
+		if (ACTION_WIDGET_SCHEDULE.equals(intent.getAction())) {
+			RefreshScheduler.onAlarm(context, intent);
+			return;
+		}
+		if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()) || Intent.ACTION_MY_PACKAGE_REPLACED.equals(intent.getAction())) {
+			// alarms do not survive a reboot, restore the schedules from the widget states
+			RefreshScheduler.rehydrate(context, RefreshScheduler.getAppWidgetIds(context));
+			return;
+		}
+
 		final int widgetId = intent.getIntExtra(WIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
 		if (widgetId == AppWidgetManager.INVALID_APPWIDGET_ID)
 			return;
 
 		String action = intent.getAction();
 		if (ACTION_WIDGET_REFRESH.equals(action)) {
+			// per-widget alarm set by an older version of the application
 			AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
 			BalanceWidgetHelper.createHttpRequest(context, appWidgetManager, widgetId, false);
 		}
 		if (ACTION_WIDGET_CLICK.equals(action)) {
-			final long currentClickMillis = System.currentTimeMillis();
-			final long lastClickMillis = BalanceWidgetHelper.loadWidgetClickMillis(context, widgetId);
-			mHandler.removeCallbacksAndMessages(null);
-			if (currentClickMillis - lastClickMillis > DOUBLE_CLICK_DELAY) {
-				mHandler.postDelayed(() -> {
-					// first click refresh
-					AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-					BalanceWidgetHelper.createHttpRequest(context, appWidgetManager, widgetId, true);
-				}, DOUBLE_CLICK_DELAY);
+			final long currentClickMillis = SystemClock.elapsedRealtime();
+			final Long lastClickMillis = mClickMillis.get(widgetId);
+			if (lastClickMillis == null || currentClickMillis - lastClickMillis > DOUBLE_CLICK_DELAY) {
+				mClickMillis.put(widgetId, currentClickMillis);
+				// refresh at once, a second click cancels it
+				AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+				BalanceWidgetHelper.createHttpRequest(context, appWidgetManager, widgetId, true);
 			} else {
-				// double click, open settings
+				// double click, open settings, a third click starts over
+				mClickMillis.delete(widgetId);
+				FetchEngine.cancel(widgetId);
 				action = ACTION_WIDGET_CONFIG;
 			}
-			BalanceWidgetHelper.saveWidgetClickMillis(context, widgetId, currentClickMillis);
 		}
 		if (ACTION_WIDGET_CONFIG.equals(action)) {
 			final Intent configIntent = new Intent(context, ConfigureActivity.class);
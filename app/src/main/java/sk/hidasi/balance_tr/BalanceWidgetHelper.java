@@ -23,24 +23,24 @@ import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.PowerManager;
 import android.util.Log;
 import android.view.MenuItem;
 import android.widget.Toast;
 
-import org.json.JSONException;
-
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.Volley;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import sk.hidasi.balance_tr.core.Backoff;
+import sk.hidasi.balance_tr.core.BalanceClient;
+import sk.hidasi.balance_tr.core.BalanceResult;
+import sk.hidasi.balance_tr.core.Card;
+import sk.hidasi.balance_tr.core.RetryPolicy;
 
 /**
  * Helper methods for the {@link BalanceWidget BalanceWidget} AppWidget and the {@link ConfigureActivity} Activity.
@@ -49,32 +49,23 @@ class BalanceWidgetHelper {
 
 	private static final String TAG = BalanceWidgetHelper.class.getSimpleName();
 
-	private static final String PREFS_NAME = "sk.hidasi.balance_tr.BalanceWidget";
-	private static final String PREF_PREFIX_TEXT = "appwidget_text_";
-	private static final String PREF_PREFIX_SERIAL = "appwidget_serial_";
-	private static final String PREF_PREFIX_FOUR_DIGITS = "appwidget_four_digits_";
-	private static final String PREF_PREFIX_UPDATE_MINUTES = "appwidget_update_minutes_";
-	private static final String PREF_PREFIX_DARK_THEME = "appwidget_dark_theme_";
-	private static final String PREF_PREFIX_UPDATE_FAILED = "appwidget_update_failed_";
-	private static final String PREF_PREFIX_MILLIS = "appwidget_millis_";
-	private static final String PREF_PREFIX_LAST_UPDATE_SUCCESS = "appwidget_last_update_success_";
-
 	private static final String WIDGET_ID = "widget_id";
 	private static final String CHANNEL_ID = "widget_channel";
 
-	private static final String CANCEL_TAG = "CancelTag";
-
 	private static NotificationChannel mNotificationChannel;
-	private static RequestQueue mRequestQueue;
-	private static long mFailureRetrySeconds;
 
 	static void createHttpRequest(final Context context, final AppWidgetManager appWidgetManager, final int appWidgetId, final boolean fromUser) {
 
-		final String serial = loadWidgetSerial(context, appWidgetId);
-		final String fourDigits = loadWidgetFourDigits(context, appWidgetId);
-		final long updateInSeconds = 60 * loadWidgetUpdateMinutes(context, appWidgetId);
+		final WidgetState state = WidgetStateStore.get(context, appWidgetId);
+		final String serial = state.serial;
+		final String fourDigits = state.fourDigits;
+
+		if (state.isCardList()) {
+			CardListWidget.refresh(context, appWidgetManager, state, fromUser);
+			return;
+		}
 
-		if (serial == null || serial.length() != 10 || fourDigits == null || fourDigits.length() != 4) {
+		if (!state.hasValidCard()) {
 			Log.e(TAG, "Invalid serial number or four digits");
 			return;
 		}
@@ -82,84 +73,262 @@ class BalanceWidgetHelper {
 		if (BuildConfig.DEBUG) {
 			// special case for making screenshots
 			if (serial.equals("1234567890") && fourDigits.equals("1234")) {
-				saveWidgetText(context, appWidgetId, "12,30€");
+				state.text = BalanceResult.format(1230);
+				WidgetStateStore.save(context, state);
 				BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, 1000);
 				return;
 			}
 		}
 
-		if (!testNetwork(context)) {
-			// no network connection, just schedule next update
+		final String cardKey = Card.getKey(serial, fourDigits);
+		final long nowMillis = System.currentTimeMillis();
+		final long updateInSeconds = getUpdateSeconds(context, state, cardKey, nowMillis);
+		final BalanceCache.Entry cached = BalanceCache.get(context, cardKey);
+		if (cached != null && cached.isFresh(context, updateInSeconds, nowMillis)) {
+			// fetched recently, possibly for another widget showing the same card
+			FlightRecorder.verbose(FlightRecorder.CACHE_HIT, appWidgetId);
+			state.text = BalanceResult.format(cached.cents);
+			state.updateFailed = false;
+			state.lastUpdateSuccess = cached.millis;
+			WidgetStateStore.save(context, state);
+			BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, updateInSeconds - (nowMillis - cached.millis) / 1000);
+			return;
+		}
+
+		final RetryPolicy.Entry retry = RetryTracker.get(context, cardKey);
+		if (!fromUser && retry != null && retry.isCircuitOpen(nowMillis)) {
+			// the card keeps failing, e.g. it has expired, do not poll it until the circuit closes
+			FlightRecorder.record(FlightRecorder.CIRCUIT_SKIPPED, appWidgetId);
+			BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, retry.getRetrySeconds(updateInSeconds, nowMillis));
+			return;
+		}
+
+		if (!fromUser && state.isAutoUpdate() && AdaptivePolling.isOverBudget(context, cardKey, state.dailyBudget, nowMillis)) {
+			FlightRecorder.record(FlightRecorder.BUDGET_USED, appWidgetId);
+			BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, AdaptivePolling.getSecondsToNextDay(nowMillis));
+			return;
+		}
+
+		if (!ConnectivityMonitor.isOnline(context)) {
+			// no network connection, refresh when it comes back or at the next scheduled update
+			FlightRecorder.record(FlightRecorder.OFFLINE_PARKED, appWidgetId);
+			ConnectivityMonitor.park(context, appWidgetId);
 			BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, updateInSeconds);
 			if (fromUser) {
 				// notify user about the reason we will not update the widget
 				if (!isIgnoringBatteryOptimizations(context)) {
-					Toast.makeText(context, R.string.turn_off_battery_optimization, Toast.LENGTH_LONG).show();
+					showToast(context, R.string.turn_off_battery_optimization, Toast.LENGTH_LONG);
 				} else {
-					Toast.makeText(context, R.string.no_connection, Toast.LENGTH_SHORT).show();
+					showToast(context, R.string.no_connection, Toast.LENGTH_SHORT);
 				}
-			} else if (loadWidgetLastUpdateSuccess(context, appWidgetId) == 0) {
-				Toast.makeText(context, R.string.no_connection, Toast.LENGTH_SHORT).show();
+			} else if (state.lastUpdateSuccess == 0) {
+				showToast(context, R.string.no_connection, Toast.LENGTH_SHORT);
 			}
 			return;
 		}
 
-		if (mRequestQueue != null) {
-			mRequestQueue.cancelAll(CANCEL_TAG);
+		ConnectivityMonitor.unpark(context, appWidgetId);
+		ScreenMonitor.release(context, appWidgetId);
+
+		final String url = Card.getUrl(serial, fourDigits);
+		final String loadingText = context.getString(R.string.widget_text_loading);
+		String oldText = cached != null ? BalanceResult.format(cached.cents) : state.text;
+		if (loadingText.equals(oldText)) {
+			oldText = null;
 		}
 
-		mRequestQueue = Volley.newRequestQueue(context);
-		final String url = String.format("https://www.trkarta.sk/balance?card_serial=%1$s&pan_4_digits=%2$s", serial, fourDigits);
-		final String oldText = loadWidgetText(context, appWidgetId);
+		// stale-while-revalidate: keep the last known balance on screen while the request runs
+		state.text = oldText != null ? oldText : loadingText;
+		state.updateFailed = false;
+		WidgetStateStore.save(context, state);
+		// fallback in case no response arrives, the response schedules the next update
+		BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, updateInSeconds);
 
-		final JsonObjectRequest jsonRequest = new JsonObjectRequest(Request.Method.GET, url, null,
+		final String restoreText = oldText;
+		final boolean sent = FetchEngine.fetch(cardKey, appWidgetId, createRequestFactory(context, cardKey, url),
 				response -> {
-					if (response == null) {
-						Log.d(TAG, "Request response = null");
-						saveWidgetText(context, appWidgetId, oldText);
-						saveWidgetUpdateFailed(context, appWidgetId, true);
-						BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, getNextRetrySeconds(updateInSeconds));
+					FlightRecorder.record(FlightRecorder.RESPONSE, appWidgetId, response.status);
+					// the state may have changed while the request was running
+					final WidgetState current = WidgetStateStore.get(context, appWidgetId);
+					if (response.isOk()) {
+						current.text = BalanceResult.format(response.cents);
+						current.lastUpdateSuccess = System.currentTimeMillis();
+						WidgetStateStore.save(context, current);
+						BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, updateInSeconds);
 					} else {
-						Log.d(TAG, "Request response = " + response);
-						try {
-							final boolean resultOk = response.getBoolean("result");
-							String text;
-							if (resultOk) {
-								text = response.getString("balance") + "€";
-							} else {
-								text = context.getString(R.string.widget_text_error);
-								showErrorNotification(context, appWidgetId);
-							}
-							saveWidgetText(context, appWidgetId, text);
-							saveLastUpdateSuccess(context, appWidgetId, System.currentTimeMillis());
-							mFailureRetrySeconds = 0;
-							BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, updateInSeconds);
-						} catch (JSONException e) {
-							Log.e(TAG, "JSONException: " + e.getMessage());
-						}
+						current.text = context.getString(R.string.widget_text_error);
+						showErrorNotification(context, current);
+						current.lastUpdateSuccess = System.currentTimeMillis();
+						WidgetStateStore.save(context, current);
+						BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, getRetrySeconds(context, cardKey, updateInSeconds));
 					}
 				},
 				error -> {
-					Log.d(TAG, "Request failed");
-					saveWidgetText(context, appWidgetId, oldText);
-					saveWidgetUpdateFailed(context, appWidgetId, true);
-					BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, getNextRetrySeconds(updateInSeconds));
+					FlightRecorder.record(FlightRecorder.REQUEST_FAILED, appWidgetId, error.networkResponse != null ? error.networkResponse.statusCode : 0);
+					final WidgetState current = WidgetStateStore.get(context, appWidgetId);
+					onRequestFailed(context, appWidgetManager, current, cardKey, restoreText, updateInSeconds);
 				});
+		if (sent) {
+			FlightRecorder.record(FlightRecorder.REQUEST_SENT, appWidgetId);
+			if (state.isAutoUpdate()) {
+				AdaptivePolling.recordRequest(context, cardKey, nowMillis);
+			}
+		}
+	}
+
+	/**
+	 * Looks up the balance of a card while its widget is being configured, see {@link ConfigureActivity}.
+	 * A cached balance which the widget would still show is returned without a request. Otherwise
+	 * the card is fetched and its balance cached, and the widget joins the request if it is applied
+	 * before the response arrives. The lookup waits under the negated widget id, so the refreshes
+	 * of the widget itself never cancel it.
+	 */
+	static void prefetch(final Context context, final WidgetState state, final String serial, final String fourDigits,
+						 final Response.Listener<BalanceResult> listener, final Response.ErrorListener errorListener) {
+		final String cardKey = Card.getKey(serial, fourDigits);
+		final long nowMillis = System.currentTimeMillis();
+		final BalanceCache.Entry cached = getReusableBalance(context, cardKey, getUpdateSeconds(context, state, cardKey, nowMillis), nowMillis);
+		if (cached != null) {
+			FlightRecorder.verbose(FlightRecorder.CACHE_HIT, state.appWidgetId);
+			listener.onResponse(new BalanceResult(BalanceResult.STATUS_OK, cached.cents));
+			return;
+		}
+		final boolean sent = FetchEngine.fetch(cardKey, -state.appWidgetId, createRequestFactory(context, cardKey, Card.getUrl(serial, fourDigits)),
+				listener, errorListener);
+		if (sent) {
+			FlightRecorder.record(FlightRecorder.REQUEST_SENT, -state.appWidgetId);
+		}
+	}
+
+	/**
+	 * Stops waiting for the lookup of the widget, which was not applied.
+	 */
+	static void cancelPrefetch(int appWidgetId) {
+		FetchEngine.cancel(-appWidgetId);
+	}
+
+	/**
+	 * Shows the cached balance on a widget which has just been configured, e.g. the balance
+	 * looked up by {@link #prefetch} or shown by another widget of the card. The balance is
+	 * used unless it is older than the update interval, the widget would not refresh it
+	 * before then either.
+	 *
+	 * @return false if the widget needs a refresh
+	 */
+	static boolean showCachedBalance(final Context context, final AppWidgetManager appWidgetManager, int appWidgetId) {
+		final WidgetState state = WidgetStateStore.get(context, appWidgetId);
+		if (state.isCardList() || !state.hasValidCard()) {
+			return false;
+		}
+		final String cardKey = Card.getKey(state.serial, state.fourDigits);
+		final long nowMillis = System.currentTimeMillis();
+		final long updateInSeconds = getUpdateSeconds(context, state, cardKey, nowMillis);
+		final BalanceCache.Entry cached = getReusableBalance(context, cardKey, updateInSeconds, nowMillis);
+		if (cached == null) {
+			return false;
+		}
+		FlightRecorder.verbose(FlightRecorder.CACHE_HIT, appWidgetId);
+		state.text = BalanceResult.format(cached.cents);
+		state.updateFailed = false;
+		state.lastUpdateSuccess = cached.millis;
+		WidgetStateStore.save(context, state);
+		BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, updateInSeconds - (nowMillis - cached.millis) / 1000);
+		return true;
+	}
+
+	private static BalanceCache.Entry getReusableBalance(final Context context, final String cardKey, long updateInSeconds, long nowMillis) {
+		final BalanceCache.Entry cached = BalanceCache.get(context, cardKey);
+		if (cached == null) {
+			return null;
+		}
+		final long age = nowMillis - cached.millis;
+		return age >= 0 && age < updateInSeconds * 1000 ? cached : null;
+	}
+
+	private static void onRequestFailed(final Context context, final AppWidgetManager appWidgetManager, final WidgetState state,
+										final String cardKey, final String restoreText, long updateInSeconds) {
+		state.text = restoreText;
+		state.updateFailed = true;
+		WidgetStateStore.save(context, state);
+		BalanceWidget.updateAppWidget(context, appWidgetManager, state.appWidgetId, getRetrySeconds(context, cardKey, updateInSeconds));
+	}
+
+	/**
+	 * Creates the requests of the card, which update the card state once, not for every widget
+	 * waiting for the response.
+	 */
+	static FetchEngine.RequestFactory<BalanceResult> createRequestFactory(final Context context, final String cardKey, final String url) {
+		return (listener, errorListener) -> new BalanceRequest(url,
+				response -> {
+					onCardResponse(context, cardKey, response);
+					listener.onResponse(response);
+				},
+				error -> {
+					RetryTracker.recordFailure(context, cardKey, classifyError(error));
+					errorListener.onErrorResponse(error);
+				});
+	}
+
+	private static void onCardResponse(final Context context, final String cardKey, final BalanceResult response) {
+		if (response.isOk()) {
+			final long nowMillis = System.currentTimeMillis();
+			BalanceCache.put(context, cardKey, response.cents, nowMillis);
+			BalanceHistory.append(context, cardKey, nowMillis, response.cents, true);
+			RetryTracker.reset(context, cardKey);
+		} else {
+			RetryTracker.recordFailure(context, cardKey, Backoff.ErrorClass.REJECTED);
+		}
+	}
+
+	/**
+	 * Classifies the error like the simulated client, a response which could not be parsed
+	 * fails with a {@link ParseError} carrying its successful status.
+	 */
+	private static Backoff.ErrorClass classifyError(final VolleyError error) {
+		final int statusCode = error.networkResponse != null ? error.networkResponse.statusCode : BalanceClient.NO_RESPONSE;
+		return BalanceClient.classify(statusCode, null);
+	}
+
+	/**
+	 * @return true if the card of the widget has a cached balance which is shown without a request
+	 */
+	static boolean hasFreshBalance(final Context context, final WidgetState state, long nowMillis) {
+		if (!state.hasValidCard()) {
+			return false;
+		}
+		final String cardKey = Card.getKey(state.serial, state.fourDigits);
+		final BalanceCache.Entry cached = BalanceCache.get(context, cardKey);
+		return cached != null && cached.isFresh(context, getUpdateSeconds(context, state, cardKey, nowMillis), nowMillis);
+	}
+
+	static long getUpdateSeconds(final Context context, final WidgetState state, final String cardKey, long nowMillis) {
+		if (state.isAutoUpdate()) {
+			return AdaptivePolling.getIntervalSeconds(context, cardKey, state.dailyBudget, nowMillis);
+		}
+		return 60L * state.updateMinutes;
+	}
 
-		final String text = context.getString(R.string.widget_text_loading);
-		saveWidgetText(context, appWidgetId, text);
-		saveWidgetUpdateFailed(context, appWidgetId, false);
-		BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, 0);
+	/**
+	 * @return the update interval of the widget, of its most often updated card for a card list
+	 */
+	static long getIntervalSeconds(final Context context, final WidgetState state, long nowMillis) {
+		if (!state.isCardList()) {
+			return state.hasValidCard() ? getUpdateSeconds(context, state, Card.getKey(state.serial, state.fourDigits), nowMillis) : 60L * state.updateMinutes;
+		}
+		long intervalSeconds = Long.MAX_VALUE;
+		for (String cardKey : state.cards) {
+			intervalSeconds = Math.min(intervalSeconds, getUpdateSeconds(context, state, cardKey, nowMillis));
+		}
+		return intervalSeconds;
+	}
 
-		jsonRequest.setTag(CANCEL_TAG);
-		jsonRequest.setShouldCache(false);
-		Log.d(TAG, "Sending request... " + url);
-		mRequestQueue.add(jsonRequest);
+	private static long getRetrySeconds(final Context context, final String cardKey, long updateInSeconds) {
+		return RetryTracker.getPolicy(context).getRefreshSeconds(cardKey, updateInSeconds);
 	}
 
-	private static long getNextRetrySeconds(final long maxUpdateInSeconds) {
-		mFailureRetrySeconds = Math.min(maxUpdateInSeconds, (mFailureRetrySeconds + 1) * 2);
-		return mFailureRetrySeconds;
+	static void showToast(final Context context, int resId, int duration) {
+		// toasts need a looper, the refresh runs on the widget worker
+		WidgetWorker.runOnMainThread(() -> Toast.makeText(context, resId, duration).show());
 	}
 
 	private static boolean isIgnoringBatteryOptimizations(final Context context) {
@@ -185,9 +354,10 @@ class BalanceWidgetHelper {
 		}
 	}
 
-	private static void showErrorNotification(final Context context, int widgetId) {
+	private static void showErrorNotification(final Context context, final WidgetState state) {
 
-		final long lastSuccess =  loadWidgetLastUpdateSuccess(context, widgetId);
+		final int widgetId = state.appWidgetId;
+		final long lastSuccess = state.lastUpdateSuccess;
 		if (lastSuccess != 0) {
 			// the server returns spurious error responses sometimes
 			// suppress the error message for one hour
@@ -218,17 +388,6 @@ class BalanceWidgetHelper {
 		notificationManager.notify(widgetId, notification);
 	}
 
-	static private boolean testNetwork(final Context context) {
-		final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-		if (connectivityManager != null) {
-			final NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
-			return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
-		} else {
-			Log.e(TAG, "Could not get ConnectivityManager system service.");
-			return false;
-		}
-	}
-
 	static boolean onOptionsItemSelected(final Activity activity, final MenuItem item) {
 		// Handle menu item selection
 		if (item.getItemId() == R.id.about) {
@@ -238,96 +397,4 @@ class BalanceWidgetHelper {
 		}
 		return activity.onOptionsItemSelected(item);
 	}
-
-	static String loadWidgetText(final Context context, int appWidgetId) {
-		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		return  prefs.getString(PREF_PREFIX_TEXT + appWidgetId, null);
-	}
-
-	static String loadWidgetSerial(final Context context, int appWidgetId) {
-		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		return  prefs.getString(PREF_PREFIX_SERIAL + appWidgetId, null);
-	}
-
-	static String loadWidgetFourDigits(final Context context, int appWidgetId) {
-		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		return  prefs.getString(PREF_PREFIX_FOUR_DIGITS + appWidgetId, null);
-	}
-
-	static int loadWidgetUpdateMinutes(final Context context, int appWidgetId) {
-		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		return  prefs.getInt(PREF_PREFIX_UPDATE_MINUTES + appWidgetId, 30);
-	}
-
-	static boolean loadWidgetDarkTheme(final Context context, int appWidgetId) {
-		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		return  prefs.getBoolean(PREF_PREFIX_DARK_THEME + appWidgetId, false);
-	}
-
-	private static void saveWidgetText(final Context context, int appWidgetId, final String text) {
-		Log.d(TAG, "saveWidgetText(), appWidgetId=" + appWidgetId);
-		final SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, 0).edit();
-		prefs.putString(PREF_PREFIX_TEXT + appWidgetId, text);
-		prefs.apply();
-	}
-
-	static void saveWidgetPrefs(final Context context, int appWidgetId, final String serial, final String fourDigits, int updateMinutes, boolean darkTheme) {
-		Log.d(TAG, "saveWidgetPrefs(), appWidgetId=" + appWidgetId);
-		final SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, 0).edit();
-		prefs.putString(PREF_PREFIX_SERIAL + appWidgetId, serial);
-		prefs.putString(PREF_PREFIX_FOUR_DIGITS + appWidgetId, fourDigits);
-		prefs.putInt(PREF_PREFIX_UPDATE_MINUTES + appWidgetId, updateMinutes);
-		prefs.putBoolean(PREF_PREFIX_DARK_THEME + appWidgetId, darkTheme);
-		prefs.remove(PREF_PREFIX_LAST_UPDATE_SUCCESS + appWidgetId);
-		prefs.apply();
-	}
-
-	static void deleteWidgetPrefs(final Context context, int appWidgetId) {
-		final SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, 0).edit();
-		prefs.remove(PREF_PREFIX_TEXT + appWidgetId);
-		prefs.remove(PREF_PREFIX_SERIAL + appWidgetId);
-		prefs.remove(PREF_PREFIX_FOUR_DIGITS + appWidgetId);
-		prefs.remove(PREF_PREFIX_UPDATE_MINUTES + appWidgetId);
-		prefs.remove(PREF_PREFIX_DARK_THEME + appWidgetId);
-		prefs.remove(PREF_PREFIX_UPDATE_FAILED + appWidgetId);
-		prefs.remove(PREF_PREFIX_MILLIS + appWidgetId);
-		prefs.remove(PREF_PREFIX_LAST_UPDATE_SUCCESS + appWidgetId);
-		prefs.apply();
-	}
-
-	static boolean loadWidgetUpdateFailed(final Context context, int appWidgetId) {
-		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		return  prefs.getBoolean(PREF_PREFIX_UPDATE_FAILED + appWidgetId, false);
-	}
-
-	private static void saveWidgetUpdateFailed(final Context context, int appWidgetId, final boolean failed) {
-		Log.d(TAG, "saveWidgetUpdateFailed(), appWidgetId=" + appWidgetId);
-		final SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, 0).edit();
-		prefs.putBoolean(PREF_PREFIX_UPDATE_FAILED + appWidgetId, failed);
-		prefs.apply();
-	}
-
-	static long loadWidgetClickMillis(final Context context, int appWidgetId) {
-		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		return  prefs.getLong(PREF_PREFIX_MILLIS + appWidgetId, 0);
-	}
-
-	static void saveWidgetClickMillis(final Context context, int appWidgetId, final long millis) {
-		Log.d(TAG, "saveWidgetClickMillis(), appWidgetId=" + appWidgetId);
-		final SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, 0).edit();
-		prefs.putLong(PREF_PREFIX_MILLIS + appWidgetId, millis);
-		prefs.apply();
-	}
-
-	static long loadWidgetLastUpdateSuccess(final Context context, int appWidgetId) {
-		final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		return  prefs.getLong(PREF_PREFIX_LAST_UPDATE_SUCCESS + appWidgetId, 0);
-	}
-
-	private static void saveLastUpdateSuccess(final Context context, int appWidgetId, final long millis) {
-		Log.d(TAG, "saveLastUpdateSuccess(), appWidgetId=" + appWidgetId);
-		final SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, 0).edit();
-		prefs.putLong(PREF_PREFIX_LAST_UPDATE_SUCCESS + appWidgetId, millis);
-		prefs.apply();
-	}
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Color;
+import android.widget.RemoteViews;
+import android.widget.RemoteViewsService;
+
+import sk.hidasi.balance_tr.core.Card;
+
+/**
+ * Provides the rows of a {@link CardListWidget CardListWidget}, one for each card,
+ * from the cached balances.
+ */
+public class CardListService extends RemoteViewsService {
+
+	@Override
+	public RemoteViewsFactory onGetViewFactory(Intent intent) {
+		final int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+		return new CardListFactory(getApplicationContext(), appWidgetId);
+	}
+
+	static class CardListFactory implements RemoteViewsFactory {
+
+		private final Context mContext;
+		private final int mAppWidgetId;
+		private String[] mLabels = {};
+		private String[] mTexts = {};
+		private boolean[] mFailed = {};
+		private boolean mDarkTheme;
+
+		CardListFactory(final Context context, int appWidgetId) {
+			mContext = context;
+			mAppWidgetId = appWidgetId;
+		}
+
+		@Override
+		public void onCreate() {
+		}
+
+		/**
+		 * Called on a binder thread when the widget publishes new balances, may read from disk.
+		 */
+		@Override
+		public void onDataSetChanged() {
+			final WidgetState state = WidgetStateStore.get(mContext, mAppWidgetId);
+			final String loadingText = mContext.getString(R.string.widget_text_loading);
+			final String[] labels = new String[state.cards.length];
+			final String[] texts = new String[state.cards.length];
+			final boolean[] failed = new boolean[state.cards.length];
+			for (int i = 0; i < state.cards.length; i++) {
+				final String cardKey = state.cards[i];
+				labels[i] = mContext.getString(R.string.card_label, Card.getFourDigits(cardKey));
+				final String text = CardListWidget.getBalanceText(mContext, cardKey);
+				texts[i] = text != null ? text : loadingText;
+				failed[i] = RetryTracker.get(mContext, cardKey) != null;
+			}
+			mLabels = labels;
+			mTexts = texts;
+			mFailed = failed;
+			mDarkTheme = state.darkTheme;
+		}
+
+		@Override
+		public void onDestroy() {
+		}
+
+		@Override
+		public int getCount() {
+			return mLabels.length;
+		}
+
+		@Override
+		public RemoteViews getViewAt(int position) {
+			final RemoteViews views = new RemoteViews(mContext.getPackageName(), R.layout.card_list_item);
+			if (position >= mLabels.length) {
+				return views;
+			}
+			final int color = mDarkTheme ? Color.WHITE : Color.BLACK;
+			views.setTextViewText(R.id.cardLabel, mLabels[position]);
+			views.setTextColor(R.id.cardLabel, color);
+			views.setTextViewText(R.id.cardBalance, mTexts[position]);
+			views.setTextColor(R.id.cardBalance, mFailed[position] ? (color & 0x00FFFFFF) | 0xC0000000 : color);
+			views.setOnClickFillInIntent(R.id.cardRow, new Intent());
+			return views;
+		}
+
+		@Override
+		public RemoteViews getLoadingView() {
+			return null;
+		}
+
+		@Override
+		public int getViewTypeCount() {
+			return 1;
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return position;
+		}
+
+		@Override
+		public boolean hasStableIds() {
+			return true;
+		}
+	}
+}
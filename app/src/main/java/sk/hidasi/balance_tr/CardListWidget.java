@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.widget.RemoteViews;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sk.hidasi.balance_tr.core.BalanceResult;
+import sk.hidasi.balance_tr.core.Card;
+
+/**
+ * App Widget listing several cards. The rows are provided by {@link CardListService}.
+ * A refresh requests every card due in one pass, the requests share the connection of
+ * the request queue, and the widget is updated once when all of them have finished.
+ */
+public class CardListWidget extends AppWidgetProvider {
+
+	private static final String WIDGET_ID = "widget_id";
+
+	static void updateAppWidget(final Context context, final AppWidgetManager appWidgetManager, final WidgetState state) {
+		final String frameKey = state.darkTheme ? "list|D" : "list|L";
+		if (!WidgetRenderer.needsUpdate(state.appWidgetId, frameKey)) {
+			// the host keeps the views, only the rows change
+			return;
+		}
+
+		final RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.card_list_widget);
+		views.setInt(R.id.cardListRoot, "setBackgroundResource", state.darkTheme ? R.color.card_list_background_dark : R.color.card_list_background);
+		views.setTextColor(R.id.cardListTitle, state.darkTheme ? 0xFFFFFFFF : 0xFF000000);
+
+		final Intent serviceIntent = new Intent(context, CardListService.class);
+		serviceIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, state.appWidgetId);
+		// the host caches the factories by the intent, make it unique for each widget
+		serviceIntent.setData(Uri.parse(serviceIntent.toUri(Intent.URI_INTENT_SCHEME)));
+		views.setRemoteAdapter(R.id.cardList, serviceIntent);
+		views.setEmptyView(R.id.cardList, R.id.cardListEmpty);
+
+		views.setOnClickPendingIntent(R.id.cardListTitle, createPendingIntent(context, state.appWidgetId, BalanceWidget.ACTION_WIDGET_CONFIG));
+		views.setPendingIntentTemplate(R.id.cardList, createPendingIntent(context, state.appWidgetId, BalanceWidget.ACTION_WIDGET_REFRESH));
+
+		appWidgetManager.updateAppWidget(state.appWidgetId, views);
+		WidgetRenderer.setSent(state.appWidgetId, frameKey);
+	}
+
+	private static PendingIntent createPendingIntent(final Context context, int appWidgetId, final String action) {
+		final Intent intent = new Intent(context, CardListWidget.class);
+		intent.setAction(action);
+		intent.putExtra(WIDGET_ID, appWidgetId);
+		return PendingIntent.getBroadcast(context, appWidgetId, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	/**
+	 * Requests the balance of every card which is due. The cards with a fresh cached balance,
+	 * an open circuit or a used up budget are left out unless the user asked for the refresh.
+	 */
+	static void refresh(final Context context, final AppWidgetManager appWidgetManager, final WidgetState state, boolean fromUser) {
+		final int appWidgetId = state.appWidgetId;
+		updateAppWidget(context, appWidgetManager, state);
+
+		if (!ConnectivityMonitor.isOnline(context)) {
+			FlightRecorder.record(FlightRecorder.OFFLINE_PARKED, appWidgetId);
+			ConnectivityMonitor.park(context, appWidgetId);
+			if (fromUser) {
+				BalanceWidgetHelper.showToast(context, R.string.no_connection, Toast.LENGTH_SHORT);
+			}
+			publish(context, appWidgetManager, state);
+			return;
+		}
+		ConnectivityMonitor.unpark(context, appWidgetId);
+		ScreenMonitor.release(context, appWidgetId);
+
+		final long nowMillis = System.currentTimeMillis();
+		final List<String> due = new ArrayList<>(state.cards.length);
+		for (String cardKey : state.cards) {
+			final BalanceCache.Entry cached = BalanceCache.get(context, cardKey);
+			final long updateInSeconds = BalanceWidgetHelper.getUpdateSeconds(context, state, cardKey, nowMillis);
+			if (due.contains(cardKey) || cached != null && cached.isFresh(context, updateInSeconds, nowMillis)) {
+				continue;
+			}
+			if (!fromUser && (RetryTracker.getPolicy(context).isCircuitOpen(cardKey)
+					|| state.isAutoUpdate() && AdaptivePolling.isOverBudget(context, cardKey, state.dailyBudget, nowMillis))) {
+				continue;
+			}
+			due.add(cardKey);
+		}
+
+		FetchEngine.cancel(appWidgetId);
+		if (due.isEmpty()) {
+			publish(context, appWidgetManager, state);
+			return;
+		}
+		// fallback in case no response arrives, publishing the rows schedules the next update
+		RefreshScheduler.schedule(context, appWidgetId, BalanceWidgetHelper.getIntervalSeconds(context, state, nowMillis));
+		// all cards in one pass over a shared connection, also when the user taps the widget
+		FetchEngine.beginBatch();
+		// responses are delivered on the widget worker one by one
+		final int[] remaining = {due.size()};
+		final Runnable onCardDone = () -> {
+			if (--remaining[0] == 0) {
+				publish(context, appWidgetManager, WidgetStateStore.get(context, appWidgetId));
+			}
+		};
+		for (String cardKey : due) {
+			final String url = Card.getUrl(Card.getSerial(cardKey), Card.getFourDigits(cardKey));
+			final boolean sent = FetchEngine.join(cardKey, appWidgetId, BalanceWidgetHelper.createRequestFactory(context, cardKey, url),
+					response -> onCardDone.run(),
+					error -> onCardDone.run());
+			if (sent) {
+				FlightRecorder.record(FlightRecorder.REQUEST_SENT, appWidgetId);
+				if (state.isAutoUpdate()) {
+					AdaptivePolling.recordRequest(context, cardKey, nowMillis);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reloads the rows of the widget in one update and schedules the next refresh for the
+	 * earliest card.
+	 */
+	private static void publish(final Context context, final AppWidgetManager appWidgetManager, final WidgetState state) {
+		appWidgetManager.notifyAppWidgetViewDataChanged(state.appWidgetId, R.id.cardList);
+
+		final long nowMillis = System.currentTimeMillis();
+		long nextUpdateInSeconds = Long.MAX_VALUE;
+		for (String cardKey : state.cards) {
+			nextUpdateInSeconds = Math.min(nextUpdateInSeconds, getUpdateSeconds(context, state, cardKey, nowMillis));
+		}
+		if (nextUpdateInSeconds != Long.MAX_VALUE) {
+			RefreshScheduler.schedule(context, state.appWidgetId, Math.max(1, nextUpdateInSeconds));
+		}
+	}
+
+	private static long getUpdateSeconds(final Context context, final WidgetState state, final String cardKey, long nowMillis) {
+		if (state.isAutoUpdate() && AdaptivePolling.isOverBudget(context, cardKey, state.dailyBudget, nowMillis)) {
+			return AdaptivePolling.getSecondsToNextDay(nowMillis);
+		}
+		final long updateInSeconds = BalanceWidgetHelper.getUpdateSeconds(context, state, cardKey, nowMillis);
+		final BalanceCache.Entry cached = BalanceCache.get(context, cardKey);
+		if (cached != null && cached.isFresh(context, updateInSeconds, nowMillis)) {
+			return updateInSeconds - (nowMillis - cached.millis) / 1000;
+		}
+		return RetryTracker.getPolicy(context).getRefreshSeconds(cardKey, updateInSeconds);
+	}
+
+	/**
+	 * @return the balance of the card to display, or null if it was never fetched
+	 */
+	static String getBalanceText(final Context context, final String cardKey) {
+		final BalanceCache.Entry cached = BalanceCache.get(context, cardKey);
+		return cached != null ? BalanceResult.format(cached.cents) : null;
+	}
+
+	@Override
+	public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+		RefreshScheduler.rehydrate(context, appWidgetIds);
+	}
+
+	@Override
+	public void onDeleted(Context context, int[] appWidgetIds) {
+		for (int appWidgetId : appWidgetIds) {
+			FetchEngine.cancel(appWidgetId);
+			ConnectivityMonitor.unpark(context, appWidgetId);
+			ScreenMonitor.release(context, appWidgetId);
+			WidgetRenderer.invalidate(appWidgetId);
+			WidgetStateStore.delete(context, appWidgetId);
+		}
+		RefreshScheduler.updateAlarm(context);
+	}
+
+	@Override
+	public void onDisabled(Context context) {
+		BalanceWidget.onProviderDisabled(context);
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		WidgetWorker.execute(this, () -> handleReceive(context, intent));
+	}
+
+	private void handleReceive(final Context context, final Intent intent) {
+		Metrics.init(context);
+		super.onReceive(context, intent);
+
+		final int widgetId = intent.getIntExtra(WIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+		if (widgetId == AppWidgetManager.INVALID_APPWIDGET_ID)
+			return;
+
+		if (BalanceWidget.ACTION_WIDGET_REFRESH.equals(intent.getAction())) {
+			// a tap on any card refreshes all of them
+			BalanceWidgetHelper.createHttpRequest(context, AppWidgetManager.getInstance(context), widgetId, true);
+		} else if (BalanceWidget.ACTION_WIDGET_CONFIG.equals(intent.getAction())) {
+			final Intent configIntent = new Intent(context, ConfigureActivity.class);
+			configIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+			configIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, widgetId);
+			context.startActivity(configIntent);
+		}
+	}
+}
@@ -16,8 +16,12 @@
 package sk.hidasi.balance_tr;
 
 import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
@@ -30,8 +34,11 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.SeekBar;
 
+import java.util.ArrayList;
 import java.util.Objects;
 
+import sk.hidasi.balance_tr.core.BalanceResult;
+import sk.hidasi.balance_tr.core.Card;
 import sk.hidasi.balance_tr.databinding.ActivityConfigureBinding;
 
 /**
@@ -40,9 +47,20 @@ import sk.hidasi.balance_tr.databinding.ActivityConfigureBinding;
 public class ConfigureActivity extends AppCompatActivity implements TextWatcher, SeekBar.OnSeekBarChangeListener, View.OnClickListener {
 
 	private int mAppWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
-	private static final int[] mUpdateMinutes = {1, 5, 10, 15, 30, 45, 60, 120, 240, 480, 720, 1440};
+	private static final int[] mUpdateMinutes = {WidgetState.UPDATE_AUTO, 1, 5, 10, 15, 30, 45, 60, 120, 240, 480, 720, 1440};
+	private static final int[] mDailyBudgets = {12, 24, 48, 96, 144, 288};
 
 	private ActivityConfigureBinding mBinding;
+	// the widget lists several cards, see CardListWidget
+	private boolean mCardList;
+	private final ArrayList<String> mCards = new ArrayList<>();
+
+	// the balance of the typed card is looked up once the user stops typing
+	private static final long PREFETCH_DELAY_MILLIS = 600;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final Runnable mPrefetchRunnable = this::prefetch;
+	private String mPrefetchKey;
+	private boolean mApplied;
 
 	@Override
 	public void onClick(View view) {
@@ -50,12 +68,43 @@ public class ConfigureActivity extends AppCompatActivity implements TextWatcher,
 		final String serial = Objects.requireNonNull(mBinding.serialNumber.getEditText()).getText().toString();
 		final String fourDigits = Objects.requireNonNull(mBinding.fourDigits.getEditText()).getText().toString();
 		final int updateDuration = progressToMinutes(mBinding.durationSeekBar.getProgress());
+		final int dailyBudget = mDailyBudgets[mBinding.budgetSeekBar.getProgress()];
 		final boolean darkTheme = mBinding.darkTheme.isChecked();
-		BalanceWidgetHelper.saveWidgetPrefs(this, mAppWidgetId, serial, fourDigits, updateDuration, darkTheme);
+		final boolean textMode = mBinding.textMode.isChecked();
+		final boolean pauseWhenIdle = mBinding.pauseWhenIdle.isChecked();
+		final WidgetState state = WidgetStateStore.get(this, mAppWidgetId);
+		if (mCardList) {
+			// the card typed in without pressing Add card
+			addEnteredCard();
+			state.cards = mCards.toArray(new String[0]);
+			for (String cardKey : state.cards) {
+				RetryTracker.reset(this, cardKey);
+			}
+		} else {
+			state.serial = serial;
+			state.fourDigits = fourDigits;
+			// the user may have fixed the card numbers, give the card a fresh start
+			RetryTracker.reset(this, Card.getKey(serial, fourDigits));
+		}
+		state.updateMinutes = updateDuration;
+		state.dailyBudget = dailyBudget;
+		state.darkTheme = darkTheme;
+		state.textMode = textMode;
+		state.pauseWhenIdle = pauseWhenIdle;
+		state.lastUpdateSuccess = 0;
+		WidgetStateStore.save(this, state);
+		mApplied = true;
 
 		// It is the responsibility of the configuration activity to update the app widget
-		AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
-		BalanceWidgetHelper.createHttpRequest(this, appWidgetManager, mAppWidgetId, false);
+		final Context appContext = getApplicationContext();
+		final int appWidgetId = mAppWidgetId;
+		WidgetWorker.execute(() -> {
+			AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(appContext);
+			// a prefetched balance is shown at once, a running lookup is joined
+			if (!BalanceWidgetHelper.showCachedBalance(appContext, appWidgetManager, appWidgetId)) {
+				BalanceWidgetHelper.createHttpRequest(appContext, appWidgetManager, appWidgetId, false);
+			}
+		});
 
 		// Make sure we pass back the original appWidgetId
 		Intent resultValue = new Intent();
@@ -82,6 +131,7 @@ public class ConfigureActivity extends AppCompatActivity implements TextWatcher,
 		Objects.requireNonNull(mBinding.serialNumber.getEditText()).addTextChangedListener(this);
 		Objects.requireNonNull(mBinding.fourDigits.getEditText()).addTextChangedListener(this);
 		mBinding.durationSeekBar.setOnSeekBarChangeListener(this);
+		mBinding.budgetSeekBar.setOnSeekBarChangeListener(this);
 		mBinding.addButton.setOnClickListener(this);
 
 		// Find the widget id from the intent.
@@ -95,9 +145,39 @@ public class ConfigureActivity extends AppCompatActivity implements TextWatcher,
 			finish();
 		}
 
+		final AppWidgetProviderInfo info = AppWidgetManager.getInstance(this).getAppWidgetInfo(mAppWidgetId);
+		mCardList = info != null && info.provider != null && CardListWidget.class.getName().equals(info.provider.getClassName());
+		if (mCardList) {
+			mBinding.cardButtons.setVisibility(View.VISIBLE);
+			mBinding.cardsText.setVisibility(View.VISIBLE);
+			mBinding.textMode.setVisibility(View.GONE);
+			mBinding.usage.setText(R.string.card_list_hint);
+			mBinding.addCardButton.setOnClickListener(view -> {
+				addEnteredCard();
+				Objects.requireNonNull(mBinding.serialNumber.getEditText()).setText(null);
+				Objects.requireNonNull(mBinding.fourDigits.getEditText()).setText(null);
+				showCards();
+			});
+			mBinding.removeCardButton.setOnClickListener(view -> {
+				if (!mCards.isEmpty()) {
+					mCards.remove(mCards.size() - 1);
+				}
+				showCards();
+			});
+		}
+
 		loadStoredValues();
 	}
 
+	@Override
+	protected void onDestroy() {
+		mHandler.removeCallbacks(mPrefetchRunnable);
+		if (!mApplied) {
+			BalanceWidgetHelper.cancelPrefetch(mAppWidgetId);
+		}
+		super.onDestroy();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuInflater inflater = getMenuInflater();
@@ -111,19 +191,53 @@ public class ConfigureActivity extends AppCompatActivity implements TextWatcher,
 	}
 
 	private void loadStoredValues() {
-		final String serial = BalanceWidgetHelper.loadWidgetSerial(this, mAppWidgetId);
-		Objects.requireNonNull(mBinding.serialNumber.getEditText()).setText(serial);
-		final String four = BalanceWidgetHelper.loadWidgetFourDigits(this, mAppWidgetId);
-		Objects.requireNonNull(mBinding.fourDigits.getEditText()).setText(four);
-		final int minutes = BalanceWidgetHelper.loadWidgetUpdateMinutes(this, mAppWidgetId);
+		final WidgetState state = WidgetStateStore.get(this, mAppWidgetId);
+		Objects.requireNonNull(mBinding.serialNumber.getEditText()).setText(state.serial);
+		Objects.requireNonNull(mBinding.fourDigits.getEditText()).setText(state.fourDigits);
+		final int minutes = state.updateMinutes;
 		final int oldProgress = mBinding.durationSeekBar.getProgress();
 		mBinding.durationSeekBar.setProgress(minutesToProgress(minutes));
 		if (oldProgress == mBinding.durationSeekBar.getProgress()) {
 			// trigger onProgressChange explicitly
 			onProgressChanged(mBinding.durationSeekBar, oldProgress, false);
 		}
-		final boolean darkTheme = BalanceWidgetHelper.loadWidgetDarkTheme(this, mAppWidgetId);
-		mBinding.darkTheme.setChecked(darkTheme);
+		final int oldBudgetProgress = mBinding.budgetSeekBar.getProgress();
+		mBinding.budgetSeekBar.setProgress(budgetToProgress(state.dailyBudget));
+		if (oldBudgetProgress == mBinding.budgetSeekBar.getProgress()) {
+			onProgressChanged(mBinding.budgetSeekBar, oldBudgetProgress, false);
+		}
+		mBinding.darkTheme.setChecked(state.darkTheme);
+		mBinding.textMode.setChecked(state.textMode);
+		mBinding.pauseWhenIdle.setChecked(state.pauseWhenIdle);
+		if (mCardList) {
+			mCards.clear();
+			for (String cardKey : state.cards) {
+				mCards.add(cardKey);
+			}
+			showCards();
+		}
+	}
+
+	private void addEnteredCard() {
+		final String serial = Objects.requireNonNull(mBinding.serialNumber.getEditText()).getText().toString();
+		final String fourDigits = Objects.requireNonNull(mBinding.fourDigits.getEditText()).getText().toString();
+		final String cardKey = Card.getKey(serial, fourDigits);
+		if (Card.isValid(serial, fourDigits) && !mCards.contains(cardKey)) {
+			mCards.add(cardKey);
+		}
+	}
+
+	private void showCards() {
+		final StringBuilder text = new StringBuilder();
+		for (String cardKey : mCards) {
+			if (text.length() > 0) {
+				text.append('\n');
+			}
+			text.append(getString(R.string.card_list_item, Card.getSerial(cardKey), Card.getFourDigits(cardKey)));
+		}
+		mBinding.cardsText.setText(text);
+		mBinding.removeCardButton.setEnabled(!mCards.isEmpty());
+		updateButtons();
 	}
 
 	@Override
@@ -142,7 +256,8 @@ public class ConfigureActivity extends AppCompatActivity implements TextWatcher,
 		final boolean fourOk = editFour.length() == 0 || editFour.length() == 4;
 		mBinding.serialNumber.setError(serialOk ? null : getString(R.string.enter_10_digits));
 		mBinding.fourDigits.setError(fourOk ? null : getString(R.string.enter_4_digits));
-		mBinding.addButton.setEnabled(serialOk && fourOk);
+		updateButtons();
+		schedulePrefetch();
 		if (serialOk && editFour.length() == 0) {
 			mBinding.fourDigits.requestFocus();
 		}
@@ -151,11 +266,79 @@ public class ConfigureActivity extends AppCompatActivity implements TextWatcher,
 		}
 	}
 
+	private void schedulePrefetch() {
+		final String serial = Objects.requireNonNull(mBinding.serialNumber.getEditText()).getText().toString();
+		final String fourDigits = Objects.requireNonNull(mBinding.fourDigits.getEditText()).getText().toString();
+		mHandler.removeCallbacks(mPrefetchRunnable);
+		if (!Card.isValid(serial, fourDigits)) {
+			mPrefetchKey = null;
+			mBinding.balancePreview.setVisibility(View.GONE);
+			return;
+		}
+		if (!Card.getKey(serial, fourDigits).equals(mPrefetchKey)) {
+			mHandler.postDelayed(mPrefetchRunnable, PREFETCH_DELAY_MILLIS);
+		}
+	}
+
+	private void prefetch() {
+		final String serial = Objects.requireNonNull(mBinding.serialNumber.getEditText()).getText().toString();
+		final String fourDigits = Objects.requireNonNull(mBinding.fourDigits.getEditText()).getText().toString();
+		if (!Card.isValid(serial, fourDigits)) {
+			return;
+		}
+		final String cardKey = Card.getKey(serial, fourDigits);
+		mPrefetchKey = cardKey;
+		// the cached balance is reused for the update interval selected now
+		final WidgetState state = WidgetStateStore.get(this, mAppWidgetId).copy();
+		state.updateMinutes = progressToMinutes(mBinding.durationSeekBar.getProgress());
+		state.dailyBudget = mDailyBudgets[mBinding.budgetSeekBar.getProgress()];
+		final Context appContext = getApplicationContext();
+		WidgetWorker.execute(() -> BalanceWidgetHelper.prefetch(appContext, state, serial, fourDigits,
+				response -> WidgetWorker.runOnMainThread(() -> showPrefetched(cardKey, response)),
+				error -> {
+					// e.g. offline, the card is checked again when the widget refreshes
+				}));
+	}
+
+	private void showPrefetched(final String cardKey, final BalanceResult response) {
+		if (isFinishing() || !cardKey.equals(mPrefetchKey)) {
+			return;
+		}
+		if (response.isOk()) {
+			mBinding.balancePreview.setText(getString(R.string.balance_preview, BalanceResult.format(response.cents)));
+			mBinding.balancePreview.setVisibility(View.VISIBLE);
+		} else {
+			mBinding.balancePreview.setVisibility(View.GONE);
+			mBinding.serialNumber.setError(getString(R.string.card_not_found));
+		}
+	}
+
+	private void updateButtons() {
+		final EditText editSerial = Objects.requireNonNull(mBinding.serialNumber.getEditText());
+		final EditText editFour = Objects.requireNonNull(mBinding.fourDigits.getEditText());
+		final boolean serialOk = editSerial.length() == 0 || editSerial.length() == 10;
+		final boolean fourOk = editFour.length() == 0 || editFour.length() == 4;
+		final boolean complete = editSerial.length() == 10 && editFour.length() == 4;
+		mBinding.addCardButton.setEnabled(complete);
+		// a card list needs at least one card
+		mBinding.addButton.setEnabled(serialOk && fourOk && (!mCardList || complete || !mCards.isEmpty()));
+	}
+
 	@Override
 	public void onProgressChanged(SeekBar seekBar, int i, boolean b) {
+		if (seekBar == mBinding.budgetSeekBar) {
+			final int budget = mDailyBudgets[i];
+			mBinding.budgetText.setText(getResources().getQuantityString(R.plurals.daily_budget, budget, budget));
+			return;
+		}
 		String text;
 		final int minutes = progressToMinutes(i);
-		if (minutes < 60) {
+		final int budgetVisibility = minutes == WidgetState.UPDATE_AUTO ? View.VISIBLE : View.GONE;
+		mBinding.budgetText.setVisibility(budgetVisibility);
+		mBinding.budgetSeekBar.setVisibility(budgetVisibility);
+		if (minutes == WidgetState.UPDATE_AUTO) {
+			text = getString(R.string.update_auto);
+		} else if (minutes < 60) {
 			text = getResources().getQuantityString(R.plurals.update_minutes, minutes, minutes);
 		} else {
 			final int hours = minutes / 60;
@@ -181,4 +364,10 @@ public class ConfigureActivity extends AppCompatActivity implements TextWatcher,
 		while (index < mUpdateMinutes.length && mUpdateMinutes[index] < minutes) index++;
 		return index;
 	}
+
+	private int budgetToProgress(final int budget) {
+		int index = 0;
+		while (index < mDailyBudgets.length - 1 && mDailyBudgets[index] < budget) index++;
+		return index;
+	}
 }
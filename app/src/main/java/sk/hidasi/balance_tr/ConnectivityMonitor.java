@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.annotation.TargetApi;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+/**
+ * Tells whether a usable network is available and parks the refresh of widgets while
+ * the device is offline. A network callback is registered only while some widget is
+ * parked, and all parked widgets are refreshed in one batch as soon as a network with
+ * validated internet access appears. The regular schedule of a parked widget is kept
+ * as a fallback, e.g. when the process is killed while offline.
+ */
+class ConnectivityMonitor {
+
+	private static final String TAG = ConnectivityMonitor.class.getSimpleName();
+
+	private static final SparseBooleanArray mParked = new SparseBooleanArray();
+	private static ConnectivityManager.NetworkCallback mCallback;
+
+	/**
+	 * @return true if the active network claims internet access, it need not be validated yet,
+	 * e.g. validation fails on some networks which reach the server just fine
+	 */
+	static boolean isOnline(final Context context) {
+		final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (connectivityManager == null) {
+			Log.e(TAG, "Could not get ConnectivityManager system service.");
+			return false;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			final Network network = connectivityManager.getActiveNetwork();
+			return network != null && hasInternet(connectivityManager.getNetworkCapabilities(network));
+		}
+		final NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+		return activeNetwork != null && activeNetwork.isConnected();
+	}
+
+	/**
+	 * Refreshes the widget once a validated network is available.
+	 */
+	static synchronized void park(final Context context, int appWidgetId) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+			// without validated capabilities the scheduled retry is the only option
+			return;
+		}
+		mParked.put(appWidgetId, true);
+		if (mCallback == null) {
+			register(context.getApplicationContext());
+		}
+	}
+
+	static synchronized void unpark(final Context context, int appWidgetId) {
+		mParked.delete(appWidgetId);
+		if (mParked.size() == 0) {
+			unregister(context.getApplicationContext());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private static boolean hasInternet(final NetworkCapabilities capabilities) {
+		return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private static boolean hasValidatedInternet(final NetworkCapabilities capabilities) {
+		return hasInternet(capabilities) && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private static void register(final Context appContext) {
+		final ConnectivityManager connectivityManager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (connectivityManager == null) {
+			return;
+		}
+		mCallback = new ConnectivityManager.NetworkCallback() {
+			@Override
+			public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+				if (hasValidatedInternet(capabilities)) {
+					flush(appContext);
+				}
+			}
+		};
+		final NetworkRequest request = new NetworkRequest.Builder()
+				.addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+				.addCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+				.build();
+		FlightRecorder.record(FlightRecorder.NETWORK_WAIT, mParked.size());
+		connectivityManager.registerNetworkCallback(request, mCallback);
+	}
+
+	private static void unregister(final Context appContext) {
+		if (mCallback == null) {
+			return;
+		}
+		final ConnectivityManager connectivityManager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (connectivityManager != null) {
+			connectivityManager.unregisterNetworkCallback(mCallback);
+		}
+		mCallback = null;
+	}
+
+	private static void flush(final Context appContext) {
+		final int[] appWidgetIds;
+		synchronized (ConnectivityMonitor.class) {
+			appWidgetIds = new int[mParked.size()];
+			for (int i = 0; i < appWidgetIds.length; i++) {
+				appWidgetIds[i] = mParked.keyAt(i);
+			}
+			mParked.clear();
+			unregister(appContext);
+		}
+		if (appWidgetIds.length == 0) {
+			return;
+		}
+		FlightRecorder.record(FlightRecorder.NETWORK_AVAILABLE, appWidgetIds.length);
+		// network callbacks run on a binder thread, refresh on the widget worker
+		WidgetWorker.execute(() -> {
+			FetchEngine.beginBatch();
+			final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(appContext);
+			for (int appWidgetId : appWidgetIds) {
+				BalanceWidgetHelper.createHttpRequest(appContext, appWidgetManager, appWidgetId, false);
+			}
+		});
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.FileProvider;
+
+import android.view.View;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import sk.hidasi.balance_tr.databinding.ActivityDiagnosticsBinding;
+
+/**
+ * Shows the {@link Metrics} and the {@link FlightRecorder} events recorded on this device and
+ * exports them as a text file.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private static final String EXPORT_DIR = "diagnostics";
+    private static final String EXPORT_FILE = "balance_tr_metrics.txt";
+
+    private ActivityDiagnosticsBinding mBinding;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mBinding = ActivityDiagnosticsBinding.inflate(getLayoutInflater());
+        setContentView(mBinding.getRoot());
+
+        Metrics.init(this);
+        showReport();
+    }
+
+    private void showReport() {
+        mBinding.metrics.setText(Metrics.getReport());
+        mBinding.events.setText(FlightRecorder.dump());
+    }
+
+    public void onExport(@NonNull View view) {
+        final File dir = new File(getCacheDir(), EXPORT_DIR);
+        final File file = new File(dir, EXPORT_FILE);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            try (Writer writer = new FileWriter(file)) {
+                writer.write(getString(R.string.app_version, BuildConfig.VERSION_NAME, BuildConfig.VERSION_CODE, Build.VERSION.RELEASE, Build.VERSION.SDK_INT));
+                writer.write('\n');
+                writer.write(Build.MANUFACTURER + " " + Build.MODEL + "\n\n");
+                writer.write(Metrics.getReport());
+                writer.write('\n');
+                writer.write(FlightRecorder.dump());
+            }
+        } catch (IOException e) {
+            Toast.makeText(this, R.string.diagnostics_export_error, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        final Uri uri = FileProvider.getUriForFile(this, BuildConfig.APPLICATION_ID + ".fileprovider", file);
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, getString(R.string.diagnostics_export)));
+    }
+
+    public void onReset(@NonNull View view) {
+        Metrics.reset();
+        showReport();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.volley.Network;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.NoCache;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * App-scoped request queue shared by all {@link BalanceWidget BalanceWidget} instances.
+ * Requests are single-flight per card: widgets showing the same card join the request
+ * which is already running and are all notified when its response arrives.
+ * Cancelling the refresh of one widget never cancels the request of another one.
+ * The lookup of a widget being configured waits under the negated widget id.
+ * <p>
+ * Requests are admitted by the {@link HostGovernor} of their host. Requests which are not
+ * admitted yet wait in a queue of the host, and drop out of it when no widget waits for
+ * them anymore, e.g. because a newer refresh of the widget replaced them.
+ */
+class FetchEngine {
+
+	/**
+	 * How long the requests of a batch are sent one after another.
+	 */
+	private static final long BATCH_MILLIS = 30 * 1000;
+
+	/**
+	 * Number of network dispatcher threads, i.e. how many cards may refresh in parallel.
+	 */
+	private static final int MAX_PARALLEL_REQUESTS = HostGovernor.MAX_CONCURRENT;
+
+	interface RequestFactory<T> {
+		Request<T> create(Response.Listener<T> listener, Response.ErrorListener errorListener);
+	}
+
+	private static class Waiter<T> {
+		final Response.Listener<T> listener;
+		final Response.ErrorListener errorListener;
+
+		Waiter(final Response.Listener<T> listener, final Response.ErrorListener errorListener) {
+			this.listener = listener;
+			this.errorListener = errorListener;
+		}
+	}
+
+	private static class Flight<T> {
+		final SparseArray<Waiter<T>> waiters = new SparseArray<>();
+		Request<T> request;
+		Host host;
+		boolean sent;
+	}
+
+	private static class Host {
+		final String name;
+		final HostGovernor governor = new HostGovernor();
+		final ArrayDeque<Flight<?>> pending = new ArrayDeque<>();
+
+		Host(final String name) {
+			this.name = name;
+		}
+	}
+
+	private static final Map<String, Flight<?>> mFlights = new HashMap<>();
+	private static final Map<String, Host> mHosts = new HashMap<>();
+	private static final Handler mHandler = new Handler(Looper.getMainLooper());
+	private static final Runnable mDrainRunnable = FetchEngine::drainAll;
+	private static RequestQueue mRequestQueue;
+	private static long mBatchUntilMillis;
+
+	/**
+	 * Fetches the balance of a card for the given widget.
+	 *
+	 * @return true if a new request was sent, false if the widget joined a request already in flight
+	 */
+	static synchronized <T> boolean fetch(final String cardKey, int appWidgetId, final RequestFactory<T> factory,
+										  final Response.Listener<T> listener, final Response.ErrorListener errorListener) {
+		cancel(appWidgetId);
+		return join(cardKey, appWidgetId, factory, listener, errorListener);
+	}
+
+	/**
+	 * Like {@link #fetch}, but the widget keeps waiting for its other cards, see {@link CardListWidget}.
+	 */
+	@SuppressWarnings("unchecked")
+	static synchronized <T> boolean join(final String cardKey, int appWidgetId, final RequestFactory<T> factory,
+										 final Response.Listener<T> listener, final Response.ErrorListener errorListener) {
+		Flight<T> flight = (Flight<T>) mFlights.get(cardKey);
+		final boolean newFlight = flight == null;
+		if (newFlight) {
+			final Flight<T> created = new Flight<>();
+			created.request = factory.create(
+					response -> {
+						for (Waiter<T> waiter : complete(cardKey, created)) {
+							waiter.listener.onResponse(response);
+						}
+					},
+					error -> {
+						onError(created, error);
+						for (Waiter<T> waiter : complete(cardKey, created)) {
+							waiter.errorListener.onErrorResponse(error);
+						}
+					});
+			created.request.setTag(cardKey);
+			created.host = getHost(created.request.getUrl());
+			mFlights.put(cardKey, created);
+			flight = created;
+		}
+		flight.waiters.put(appWidgetId, new Waiter<>(listener, errorListener));
+
+		if (newFlight) {
+			flight.host.pending.add(flight);
+			drain(flight.host);
+		} else {
+			FlightRecorder.verbose(FlightRecorder.FLIGHT_JOINED, appWidgetId);
+		}
+		return newFlight;
+	}
+
+	/**
+	 * Stops waiting for the responses for the given widget. A request itself is cancelled
+	 * only when no other widget is waiting for it.
+	 */
+	static synchronized void cancel(int appWidgetId) {
+		final Iterator<Flight<?>> it = mFlights.values().iterator();
+		while (it.hasNext()) {
+			final Flight<?> flight = it.next();
+			final int index = flight.waiters.indexOfKey(appWidgetId);
+			if (index >= 0) {
+				flight.waiters.removeAt(index);
+				if (flight.waiters.size() == 0) {
+					flight.request.cancel();
+					it.remove();
+					if (flight.sent) {
+						// a cancelled request is never delivered, free its slot now
+						flight.sent = false;
+						flight.host.governor.release();
+						drain(flight.host);
+					} else {
+						flight.host.pending.remove(flight);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called before several widgets are refreshed at once. For a while the requests are sent
+	 * one after another, the first one opens the connection and the others reuse it.
+	 */
+	static synchronized void beginBatch() {
+		mBatchUntilMillis = SystemClock.elapsedRealtime() + BATCH_MILLIS;
+	}
+
+	static synchronized void shutdown() {
+		mFlights.clear();
+		mHosts.clear();
+		mHandler.removeCallbacks(mDrainRunnable);
+		if (mRequestQueue != null) {
+			FlightRecorder.record(FlightRecorder.ENGINE_SHUTDOWN);
+			mRequestQueue.cancelAll(request -> true);
+			mRequestQueue.stop();
+			mRequestQueue = null;
+		}
+		OkHttpStack.shutdown();
+	}
+
+	private static synchronized <T> Waiter<T>[] complete(final String cardKey, final Flight<T> flight) {
+		if (mFlights.get(cardKey) == flight) {
+			mFlights.remove(cardKey);
+		}
+		if (flight.sent) {
+			flight.sent = false;
+			flight.host.governor.release();
+			drain(flight.host);
+		}
+		@SuppressWarnings("unchecked")
+		final Waiter<T>[] waiters = new Waiter[flight.waiters.size()];
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = flight.waiters.valueAt(i);
+		}
+		flight.waiters.clear();
+		return waiters;
+	}
+
+	private static synchronized void onError(final Flight<?> flight, final VolleyError error) {
+		if (error.networkResponse != null && HostGovernor.isThrottled(error.networkResponse.statusCode)) {
+			final String retryAfter = error.networkResponse.headers != null ? error.networkResponse.headers.get("Retry-After") : null;
+			final long blockedMillis = flight.host.governor.onThrottled(retryAfter, SystemClock.elapsedRealtime(), System.currentTimeMillis());
+			FlightRecorder.record(FlightRecorder.HOST_THROTTLED, error.networkResponse.statusCode, blockedMillis);
+		}
+	}
+
+	/**
+	 * Sends the waiting requests of the host which the governor admits.
+	 */
+	private static void drain(final Host host) {
+		while (!host.pending.isEmpty()) {
+			final Flight<?> flight = host.pending.peek();
+			if (flight.waiters.size() == 0 || flight.request.isCanceled()) {
+				host.pending.poll();
+				continue;
+			}
+			final long nowMillis = SystemClock.elapsedRealtime();
+			final long delayMillis = host.governor.acquire(nowMillis, nowMillis < mBatchUntilMillis);
+			if (delayMillis == HostGovernor.WAIT_FOR_SLOT) {
+				// drained again when a running request completes
+				return;
+			}
+			if (delayMillis > 0) {
+				FlightRecorder.verbose(FlightRecorder.HOST_LIMITED, host.pending.size(), delayMillis);
+				mHandler.removeCallbacks(mDrainRunnable);
+				mHandler.postDelayed(mDrainRunnable, delayMillis);
+				return;
+			}
+			host.pending.poll();
+			flight.sent = true;
+			getRequestQueue().add(flight.request);
+		}
+	}
+
+	private static synchronized void drainAll() {
+		for (Host host : mHosts.values()) {
+			drain(host);
+		}
+	}
+
+	private static Host getHost(final String url) {
+		final String name = String.valueOf(Uri.parse(url).getHost());
+		Host host = mHosts.get(name);
+		if (host == null) {
+			host = new Host(name);
+			mHosts.put(name, host);
+		}
+		return host;
+	}
+
+	private static RequestQueue getRequestQueue() {
+		if (mRequestQueue == null) {
+			FlightRecorder.record(FlightRecorder.QUEUE_STARTED);
+			// responses are never cached by Volley, so there is no need for a disk cache
+			final Network network = new BasicNetwork(new OkHttpStack());
+			// responses are delivered to the widget worker, not to the main thread
+			final ExecutorDelivery delivery = new ExecutorDelivery(WidgetWorker.getDeliveryExecutor());
+			mRequestQueue = new RequestQueue(new NoCache(), network, MAX_PARALLEL_REQUESTS, delivery);
+			mRequestQueue.start();
+		}
+		return mRequestQueue;
+	}
+}
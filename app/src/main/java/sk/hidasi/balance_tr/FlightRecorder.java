@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Ring buffer of the last {@link #CAPACITY} events of the widget. An event is an id and two
+ * primitive arguments stored in preallocated arrays; nothing is formatted until the buffer is
+ * dumped, e.g. for a bug report. Card numbers and URLs are never recorded.
+ * <p>
+ * Verbose events are compiled out of release builds, {@link #VERBOSE} is a compile-time
+ * constant and the body of {@link #verbose(int, long, long)} is empty there. Debug builds
+ * also print every event to logcat.
+ */
+class FlightRecorder {
+
+	private static final String TAG = FlightRecorder.class.getSimpleName();
+
+	static final boolean VERBOSE = BuildConfig.VERBOSE_EVENTS;
+	private static final int CAPACITY = 256;
+
+	static final int CACHE_HIT = 0;
+	static final int CIRCUIT_SKIPPED = 1;
+	static final int BUDGET_USED = 2;
+	static final int OFFLINE_PARKED = 3;
+	static final int REQUEST_SENT = 4;
+	static final int RESPONSE = 5;
+	static final int REQUEST_FAILED = 6;
+	static final int FLIGHT_JOINED = 7;
+	static final int HOST_LIMITED = 8;
+	static final int HOST_THROTTLED = 9;
+	static final int QUEUE_STARTED = 10;
+	static final int ENGINE_SHUTDOWN = 11;
+	static final int NETWORK_WAIT = 12;
+	static final int NETWORK_AVAILABLE = 13;
+	static final int ALARM_WAKEUP = 14;
+	static final int REHYDRATED = 15;
+	static final int CIRCUIT_OPENED = 16;
+	static final int STATE_MIGRATED = 17;
+	static final int HISTORY_COMPACTED = 18;
+	static final int SCREEN_WAIT = 19;
+	static final int USER_PRESENT = 20;
+
+	// formatted with both arguments, unused ones are ignored
+	private static final String[] FORMATS = {
+			"cache hit, appWidgetId=%d",
+			"circuit open, skipped appWidgetId=%d",
+			"daily budget used up, appWidgetId=%d",
+			"offline, parked appWidgetId=%d",
+			"request sent, appWidgetId=%d",
+			"response, appWidgetId=%d status=%d",
+			"request failed, appWidgetId=%d http=%d",
+			"joined flight, appWidgetId=%d",
+			"host limited, %d waiting for %d ms",
+			"host throttled, http=%d blocked for %d ms",
+			"request queue started",
+			"request queue shut down",
+			"waiting for network, %d parked",
+			"network available, refreshing %d widgets",
+			"alarm wakeup, refreshed %d widgets, %d held while idle",
+			"rehydrated %d widgets, %d staggered",
+			"circuit opened after %d failures, error=%d",
+			"migrated %d widgets from preferences",
+			"history compacted to %d bytes",
+			"waiting for the user, %d held",
+			"user present, refreshing %d widgets",
+	};
+
+	private static final long[] mTimes = new long[CAPACITY];
+	private static final int[] mEvents = new int[CAPACITY];
+	private static final long[] mArgs0 = new long[CAPACITY];
+	private static final long[] mArgs1 = new long[CAPACITY];
+	private static int mNext;
+	private static int mSize;
+
+	static void record(int event) {
+		record(event, 0, 0);
+	}
+
+	static void record(int event, long arg0) {
+		record(event, arg0, 0);
+	}
+
+	static synchronized void record(int event, long arg0, long arg1) {
+		mTimes[mNext] = System.currentTimeMillis();
+		mEvents[mNext] = event;
+		mArgs0[mNext] = arg0;
+		mArgs1[mNext] = arg1;
+		mNext = (mNext + 1) % CAPACITY;
+		mSize = Math.min(mSize + 1, CAPACITY);
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, format(event, arg0, arg1));
+		}
+	}
+
+	/**
+	 * Records a frequent, low value event. Removed from release builds.
+	 */
+	static void verbose(int event, long arg0, long arg1) {
+		if (VERBOSE) {
+			record(event, arg0, arg1);
+		}
+	}
+
+	static void verbose(int event, long arg0) {
+		if (VERBOSE) {
+			record(event, arg0, 0);
+		}
+	}
+
+	/**
+	 * @return the recorded events, oldest first, one per line
+	 */
+	static synchronized String dump() {
+		final SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+		final StringBuilder dump = new StringBuilder(mSize * 48);
+		final Date date = new Date();
+		for (int i = 0; i < mSize; i++) {
+			final int index = (mNext - mSize + i + CAPACITY) % CAPACITY;
+			date.setTime(mTimes[index]);
+			dump.append(dateFormat.format(date)).append(' ')
+					.append(format(mEvents[index], mArgs0[index], mArgs1[index])).append('\n');
+		}
+		return dump.toString();
+	}
+
+	private static String format(int event, long arg0, long arg1) {
+		return String.format(Locale.US, FORMATS[event], arg0, arg1);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Admission control for the requests sent to one host: a token bucket limits the requests
+ * per minute, at most {@link #MAX_CONCURRENT} requests run at the same time, and no request is
+ * sent while the server asked to back off with 429 or 503 and a Retry-After header.
+ * Times are in elapsed realtime milliseconds.
+ */
+class HostGovernor {
+
+	/** returned by {@link #acquire(long, boolean)} when the request has to wait for a running one */
+	static final long WAIT_FOR_SLOT = -1;
+
+	static final int MAX_CONCURRENT = 2;
+	private static final int BUCKET_CAPACITY = 4;
+	private static final long TOKEN_MILLIS = 10 * 1000;
+	private static final long DEFAULT_RETRY_AFTER_MILLIS = 60 * 1000;
+	private static final long MAX_RETRY_AFTER_MILLIS = 60 * 60 * 1000;
+
+	private double mTokens = BUCKET_CAPACITY;
+	private long mRefillMillis = Long.MIN_VALUE;
+	private int mRunning;
+	private long mBlockedUntilMillis;
+
+	/**
+	 * Takes a token and a connection slot for a request.
+	 *
+	 * @param serial allow one running request only, so a batch of requests shares one connection
+	 * @return 0 if the request may be sent now, {@link #WAIT_FOR_SLOT}, or milliseconds to wait
+	 */
+	long acquire(long nowMillis, boolean serial) {
+		if (nowMillis < mBlockedUntilMillis) {
+			return mBlockedUntilMillis - nowMillis;
+		}
+		if (mRunning >= (serial ? 1 : MAX_CONCURRENT)) {
+			return WAIT_FOR_SLOT;
+		}
+		refill(nowMillis);
+		if (mTokens < 1) {
+			return Math.max(1, (long) Math.ceil((1 - mTokens) * TOKEN_MILLIS));
+		}
+		mTokens -= 1;
+		mRunning++;
+		return 0;
+	}
+
+	void release() {
+		if (mRunning > 0) {
+			mRunning--;
+		}
+	}
+
+	/**
+	 * Blocks the host after a 429 or 503 response.
+	 *
+	 * @param retryAfter value of the Retry-After header, or null
+	 * @return how long the host is blocked for
+	 */
+	long onThrottled(final String retryAfter, long nowMillis, long wallMillis) {
+		final long delayMillis = Math.min(MAX_RETRY_AFTER_MILLIS, parseRetryAfter(retryAfter, wallMillis));
+		mBlockedUntilMillis = Math.max(mBlockedUntilMillis, nowMillis + delayMillis);
+		// do not let a full bucket burst out as soon as the host is unblocked
+		mTokens = Math.min(mTokens, 1);
+		return delayMillis;
+	}
+
+	static boolean isThrottled(int statusCode) {
+		return statusCode == 429 || statusCode == 503;
+	}
+
+	/**
+	 * Retry-After is either a number of seconds or an HTTP date.
+	 */
+	static long parseRetryAfter(final String value, long wallMillis) {
+		if (value == null || value.trim().isEmpty()) {
+			return DEFAULT_RETRY_AFTER_MILLIS;
+		}
+		final String trimmed = value.trim();
+		try {
+			return Math.max(0, Long.parseLong(trimmed) * 1000);
+		} catch (NumberFormatException e) {
+			// not a number of seconds
+		}
+		try {
+			final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			return Math.max(0, format.parse(trimmed).getTime() - wallMillis);
+		} catch (ParseException e) {
+			return DEFAULT_RETRY_AFTER_MILLIS;
+		}
+	}
+
+	private void refill(long nowMillis) {
+		if (mRefillMillis != Long.MIN_VALUE && nowMillis > mRefillMillis) {
+			mTokens = Math.min(BUCKET_CAPACITY, mTokens + (double) (nowMillis - mRefillMillis) / TOKEN_MILLIS);
+		}
+		mRefillMillis = nowMillis;
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.util.AtomicFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fixed-size histograms of the hot path: fetch phases, rendering, storage I/O, alarm drift and
+ * the refreshes held back while the device is idle.
+ * <p>
+ * Values below 8 have a bucket each, larger values are bucketed per power of two with four
+ * linear sub-buckets, i.e. with a relative error below 12.5%. Recording only increments
+ * counters of preallocated arrays. The histograms are kept across processes in a small
+ * file which is written on the widget worker at most once a minute.
+ */
+class Metrics {
+
+	private static final String TAG = Metrics.class.getSimpleName();
+
+	static final int FETCH_QUEUE_WAIT = 0;
+	static final int FETCH_DNS = 1;
+	static final int FETCH_CONNECT = 2;
+	static final int FETCH_TLS = 3;
+	static final int FETCH_TTFB = 4;
+	static final int FETCH_PARSE = 5;
+	static final int FETCH_TOTAL = 6;
+	static final int RENDER_DECODE = 7;
+	static final int RENDER_DRAW = 8;
+	static final int RENDER_PAYLOAD = 9;
+	static final int STORE_READ = 10;
+	static final int STORE_WRITE = 11;
+	static final int HISTORY_WRITE = 12;
+	static final int ALARM_DRIFT = 13;
+	static final int IDLE_SKIPPED = 14;
+	static final int IDLE_CAUGHT_UP = 15;
+	private static final int COUNT = 16;
+
+	// durations are recorded in microseconds, the alarm drift in milliseconds, the skipped refreshes
+	// per widget released by ScreenMonitor and the widgets caught up per unlock, see the totals
+	private static final String[] NAMES = {
+			"fetch.queue_wait_us", "fetch.dns_us", "fetch.connect_us", "fetch.tls_us", "fetch.ttfb_us",
+			"fetch.parse_us", "fetch.total_us", "render.decode_us", "render.draw_us", "render.payload_bytes",
+			"store.read_us", "store.write_us", "history.write_us", "alarm.drift_ms",
+			"idle.skipped", "idle.caught_up"
+	};
+
+	private static final int LINEAR_BUCKETS = 8;
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = LINEAR_BUCKETS + (63 - 3) * SUB_BUCKETS;
+
+	private static final String FILE_NAME = "metrics";
+	private static final int VERSION = 1;
+	private static final long SAVE_INTERVAL_MILLIS = 60 * 1000;
+
+	private static final long[][] mBuckets = new long[COUNT][BUCKETS];
+	private static final long[] mCounts = new long[COUNT];
+	private static final long[] mSums = new long[COUNT];
+	private static final long[] mMax = new long[COUNT];
+	private static final Runnable mSaveRunnable = Metrics::save;
+
+	private static Context mAppContext;
+	private static boolean mDirty;
+	private static boolean mSaveScheduled;
+	private static long mSavedMillis;
+
+	/**
+	 * Loads the histograms of earlier processes, the values recorded so far are kept.
+	 */
+	static synchronized void init(final Context context) {
+		if (mAppContext != null) {
+			return;
+		}
+		mAppContext = context.getApplicationContext();
+		load();
+	}
+
+	/**
+	 * @return a start time for {@link #recordSince(int, long)}
+	 */
+	static long start() {
+		return System.nanoTime();
+	}
+
+	static void recordSince(int metric, long startNanos) {
+		record(metric, (System.nanoTime() - startNanos) / 1000);
+	}
+
+	static synchronized void record(int metric, long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		mBuckets[metric][getBucket(value)]++;
+		mCounts[metric]++;
+		mSums[metric] += value;
+		mMax[metric] = Math.max(mMax[metric], value);
+		mDirty = true;
+		final long nowMillis = SystemClock.elapsedRealtime();
+		if (mAppContext != null && !mSaveScheduled && nowMillis - mSavedMillis >= SAVE_INTERVAL_MILLIS) {
+			mSaveScheduled = WidgetWorker.offer(mSaveRunnable);
+		}
+	}
+
+	/**
+	 * @return the approximate value below which the given fraction of the values lies
+	 */
+	static synchronized long getPercentile(int metric, double fraction) {
+		final long count = mCounts[metric];
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mBuckets[metric][i];
+			if (seen >= rank) {
+				return Math.min(mMax[metric], getBucketMax(i));
+			}
+		}
+		return mMax[metric];
+	}
+
+	/**
+	 * A plain text table of all histograms, used by the diagnostics screen and the export.
+	 */
+	static synchronized String getReport() {
+		final StringBuilder report = new StringBuilder();
+		report.append(String.format(Locale.US, "%-22s %7s %9s %9s %9s %9s %9s %9s%n", "metric", "count", "total", "mean", "p50", "p90", "p99", "max"));
+		for (int i = 0; i < COUNT; i++) {
+			final long count = mCounts[i];
+			report.append(String.format(Locale.US, "%-22s %7d %9d %9d %9d %9d %9d %9d%n", NAMES[i], count, mSums[i],
+					count > 0 ? mSums[i] / count : 0, getPercentile(i, 0.5), getPercentile(i, 0.9), getPercentile(i, 0.99), mMax[i]));
+		}
+		return report.toString();
+	}
+
+	static synchronized void reset() {
+		for (int i = 0; i < COUNT; i++) {
+			Arrays.fill(mBuckets[i], 0);
+			mCounts[i] = 0;
+			mSums[i] = 0;
+			mMax[i] = 0;
+		}
+		mDirty = true;
+		if (mAppContext != null && !mSaveScheduled) {
+			mSaveScheduled = WidgetWorker.offer(mSaveRunnable);
+		}
+	}
+
+	private static int getBucket(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - 3) * SUB_BUCKETS + sub;
+	}
+
+	private static long getBucketMax(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		final int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 3;
+		final int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+	}
+
+	/**
+	 * Serializes the histograms under the lock and writes the file outside of it.
+	 */
+	private static void save() {
+		final AtomicFile file;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		synchronized (Metrics.class) {
+			mSaveScheduled = false;
+			if (!mDirty) {
+				return;
+			}
+			mDirty = false;
+			mSavedMillis = SystemClock.elapsedRealtime();
+			file = new AtomicFile(new File(mAppContext.getFilesDir(), FILE_NAME));
+			try {
+				writeTo(new DataOutputStream(bytes));
+			} catch (IOException e) {
+				return;
+			}
+		}
+		FileOutputStream stream = null;
+		try {
+			stream = file.startWrite();
+			bytes.writeTo(stream);
+			file.finishWrite(stream);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not write metrics: " + e.getMessage());
+			if (stream != null) {
+				file.failWrite(stream);
+			}
+		}
+	}
+
+	private static void writeTo(final DataOutputStream out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeByte(COUNT);
+		for (int i = 0; i < COUNT; i++) {
+			out.writeLong(mCounts[i]);
+			out.writeLong(mSums[i]);
+			out.writeLong(mMax[i]);
+			int used = 0;
+			for (long bucket : mBuckets[i]) {
+				if (bucket != 0) {
+					used++;
+				}
+			}
+			out.writeShort(used);
+			for (int b = 0; b < BUCKETS; b++) {
+				if (mBuckets[i][b] != 0) {
+					out.writeShort(b);
+					out.writeLong(mBuckets[i][b]);
+				}
+			}
+		}
+	}
+
+	private static void load() {
+		final AtomicFile file = new AtomicFile(new File(mAppContext.getFilesDir(), FILE_NAME));
+		try (FileInputStream stream = file.openRead()) {
+			final DataInputStream in = new DataInputStream(stream);
+			if (in.readUnsignedByte() != VERSION) {
+				return;
+			}
+			final int count = Math.min(COUNT, in.readUnsignedByte());
+			for (int i = 0; i < count; i++) {
+				mCounts[i] += in.readLong();
+				mSums[i] += in.readLong();
+				mMax[i] = Math.max(mMax[i], in.readLong());
+				final int used = in.readUnsignedShort();
+				for (int u = 0; u < used; u++) {
+					final int bucket = in.readUnsignedShort();
+					final long value = in.readLong();
+					if (bucket < BUCKETS) {
+						mBuckets[i][bucket] += value;
+					}
+				}
+			}
+		} catch (IOException e) {
+			// no metrics recorded yet
+		}
+	}
+}
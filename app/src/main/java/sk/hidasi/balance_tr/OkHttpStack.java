@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.HttpResponse;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Volley transport on a process-wide OkHttp client. Idle connections are kept alive
+ * between refreshes, so the following requests skip the TCP and TLS handshakes, and new
+ * connections resume the cached TLS session. Host names are resolved by {@link CachingDns}.
+ */
+class OkHttpStack extends BaseHttpStack {
+
+	private static final long KEEP_ALIVE_MINUTES = 5;
+
+	private static OkHttpClient mClient;
+
+	/**
+	 * Host name cache, the resolved addresses are reused for {@link #TTL_MILLIS}. When the
+	 * lookup fails, e.g. on a flaky network, addresses up to {@link #STALE_MILLIS} old are used.
+	 */
+	static class CachingDns implements Dns {
+
+		private static final long TTL_MILLIS = 10 * 60 * 1000;
+		private static final long STALE_MILLIS = 24 * 60 * 60 * 1000;
+
+		private static class Entry {
+			final List<InetAddress> addresses;
+			final long millis;
+
+			Entry(final List<InetAddress> addresses, long millis) {
+				this.addresses = addresses;
+				this.millis = millis;
+			}
+		}
+
+		private final Map<String, Entry> mEntries = new HashMap<>();
+
+		@Override
+		public List<InetAddress> lookup(final String hostname) throws UnknownHostException {
+			final long nowMillis = SystemClock.elapsedRealtime();
+			final Entry entry;
+			synchronized (mEntries) {
+				entry = mEntries.get(hostname);
+			}
+			if (entry != null && nowMillis - entry.millis < TTL_MILLIS) {
+				return entry.addresses;
+			}
+			try {
+				final List<InetAddress> addresses = Dns.SYSTEM.lookup(hostname);
+				synchronized (mEntries) {
+					mEntries.put(hostname, new Entry(addresses, nowMillis));
+				}
+				return addresses;
+			} catch (UnknownHostException e) {
+				if (entry != null && nowMillis - entry.millis < STALE_MILLIS) {
+					return entry.addresses;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Records the phases of a call in {@link Metrics}.
+	 */
+	private static class PhaseListener extends EventListener {
+		private long mCallStart;
+		private long mDnsStart;
+		private long mConnectStart;
+		private long mSecureConnectStart;
+
+		@Override
+		public void callStart(Call call) {
+			mCallStart = Metrics.start();
+		}
+
+		@Override
+		public void dnsStart(Call call, String domainName) {
+			mDnsStart = Metrics.start();
+		}
+
+		@Override
+		public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+			Metrics.recordSince(Metrics.FETCH_DNS, mDnsStart);
+		}
+
+		@Override
+		public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+			mConnectStart = Metrics.start();
+		}
+
+		@Override
+		public void secureConnectStart(Call call) {
+			mSecureConnectStart = Metrics.start();
+		}
+
+		@Override
+		public void secureConnectEnd(Call call, Handshake handshake) {
+			Metrics.recordSince(Metrics.FETCH_TLS, mSecureConnectStart);
+		}
+
+		@Override
+		public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+			Metrics.recordSince(Metrics.FETCH_CONNECT, mConnectStart);
+		}
+
+		@Override
+		public void responseHeadersStart(Call call) {
+			Metrics.recordSince(Metrics.FETCH_TTFB, mCallStart);
+		}
+	}
+
+	@Override
+	public HttpResponse executeRequest(final Request<?> request, final Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+		if (request instanceof BalanceRequest) {
+			Metrics.recordSince(Metrics.FETCH_QUEUE_WAIT, ((BalanceRequest) request).getCreatedNanos());
+		}
+		final int timeoutMs = request.getTimeoutMs();
+		final OkHttpClient client = getClient().newBuilder()
+				.connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+				.readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+				.writeTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+				.build();
+
+		final okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(request.getUrl());
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			builder.header(header.getKey(), header.getValue());
+		}
+		for (Map.Entry<String, String> header : additionalHeaders.entrySet()) {
+			builder.header(header.getKey(), header.getValue());
+		}
+		setMethod(builder, request);
+
+		final Response response = client.newCall(builder.build()).execute();
+		final ResponseBody body = response.body();
+		if (body == null) {
+			response.close();
+			return new HttpResponse(response.code(), convertHeaders(response.headers()));
+		}
+		// the body stream is closed by Volley once it is read, which returns the connection to the pool
+		return new HttpResponse(response.code(), convertHeaders(response.headers()), (int) body.contentLength(), body.byteStream());
+	}
+
+	static synchronized void shutdown() {
+		if (mClient != null) {
+			mClient.connectionPool().evictAll();
+		}
+	}
+
+	private static synchronized OkHttpClient getClient() {
+		if (mClient == null) {
+			mClient = new OkHttpClient.Builder()
+					.connectionPool(new ConnectionPool(HostGovernor.MAX_CONCURRENT, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+					.dns(new CachingDns())
+					.eventListenerFactory(call -> new PhaseListener())
+					// Volley retries the request itself
+					.retryOnConnectionFailure(false)
+					.build();
+		}
+		return mClient;
+	}
+
+	private static void setMethod(final okhttp3.Request.Builder builder, final Request<?> request) throws AuthFailureError {
+		switch (request.getMethod()) {
+			case Request.Method.GET:
+			case Request.Method.DEPRECATED_GET_OR_POST:
+				builder.get();
+				break;
+			case Request.Method.HEAD:
+				builder.head();
+				break;
+			case Request.Method.DELETE:
+				builder.method("DELETE", null);
+				break;
+			case Request.Method.POST:
+				builder.method("POST", createBody(request));
+				break;
+			case Request.Method.PUT:
+				builder.method("PUT", createBody(request));
+				break;
+			case Request.Method.PATCH:
+				builder.method("PATCH", createBody(request));
+				break;
+			default:
+				throw new IllegalStateException("Unknown method type.");
+		}
+	}
+
+	private static RequestBody createBody(final Request<?> request) throws AuthFailureError {
+		final byte[] body = request.getBody();
+		return RequestBody.create(MediaType.parse(request.getBodyContentType()), body != null ? body : new byte[0]);
+	}
+
+	private static List<Header> convertHeaders(final Headers headers) {
+		final List<Header> result = new ArrayList<>(headers.size());
+		for (int i = 0; i < headers.size(); i++) {
+			result.add(new Header(headers.name(i), headers.value(i)));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.SharedPreferences;
+
+import sk.hidasi.balance_tr.core.Storage;
+
+/**
+ * {@link Storage} of the core logic backed by shared preferences.
+ */
+class PreferencesStorage implements Storage {
+
+	private final SharedPreferences mPrefs;
+
+	PreferencesStorage(final SharedPreferences prefs) {
+		mPrefs = prefs;
+	}
+
+	@Override
+	public int getInt(final String key, int defaultValue) {
+		return mPrefs.getInt(key, defaultValue);
+	}
+
+	@Override
+	public long getLong(final String key, long defaultValue) {
+		return mPrefs.getLong(key, defaultValue);
+	}
+
+	@Override
+	public Editor edit() {
+		final SharedPreferences.Editor editor = mPrefs.edit();
+		return new Editor() {
+			@Override
+			public Editor putInt(final String key, int value) {
+				editor.putInt(key, value);
+				return this;
+			}
+
+			@Override
+			public Editor putLong(final String key, long value) {
+				editor.putLong(key, value);
+				return this;
+			}
+
+			@Override
+			public Editor remove(final String key) {
+				editor.remove(key);
+				return this;
+			}
+
+			@Override
+			public Editor clear() {
+				editor.clear();
+				return this;
+			}
+
+			@Override
+			public void apply() {
+				editor.apply();
+			}
+		};
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Schedules the periodic refresh of all {@link BalanceWidget BalanceWidget} and
+ * {@link CardListWidget CardListWidget} instances with a single alarm. Every widget has
+ * a due time and a tolerance window. The alarm is set for the earliest due widget and,
+ * when it fires, all widgets due within their tolerance window are refreshed in the same
+ * wakeup. Widgets which opted in are held back while the device
+ * is idle, see {@link ScreenMonitor}.
+ */
+class RefreshScheduler {
+
+	private static final String TAG = RefreshScheduler.class.getSimpleName();
+
+	private static final String EXTRA_TRIGGER_MILLIS = "trigger_millis";
+
+	private static final long MIN_WINDOW_MILLIS = 5 * 1000;
+	private static final long MAX_WINDOW_MILLIS = 15 * 60 * 1000;
+
+	// overdue widgets are refreshed one by one after a boot instead of all at once
+	private static final long STAGGER_MIN_SECONDS = 15;
+	private static final int STAGGER_STEP_SECONDS = 20;
+
+	private static final Random mRandom = new Random();
+	private static boolean mInBatch;
+
+	/**
+	 * Schedules the next refresh of the widget in about {@code delaySeconds}.
+	 */
+	static synchronized void schedule(final Context context, int appWidgetId, long delaySeconds) {
+		final WidgetState state = WidgetStateStore.get(context, appWidgetId);
+		final long delayMillis = delaySeconds * 1000;
+		state.nextUpdateMillis = System.currentTimeMillis() + delayMillis;
+		state.nextUpdateWindowMillis = getWindowMillis(delayMillis);
+		WidgetStateStore.save(context, state);
+		if (!mInBatch) {
+			updateAlarm(context);
+		}
+	}
+
+	/**
+	 * Refreshes all widgets which are due within their tolerance window.
+	 */
+	static synchronized void onAlarm(final Context context, final Intent intent) {
+		final long triggerMillis = intent.getLongExtra(EXTRA_TRIGGER_MILLIS, 0);
+		if (triggerMillis > 0) {
+			// delivery of an inexact alarm is expected within its window, the drift includes it
+			Metrics.record(Metrics.ALARM_DRIFT, SystemClock.elapsedRealtime() - triggerMillis);
+		}
+		final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+		final long nowMillis = System.currentTimeMillis();
+		final boolean interactive = ScreenMonitor.isInteractive(context);
+		int count = 0;
+		int held = 0;
+		FetchEngine.beginBatch();
+		mInBatch = true;
+		try {
+			for (int appWidgetId : getAppWidgetIds(context)) {
+				final WidgetState state = WidgetStateStore.get(context, appWidgetId);
+				if (state.nextUpdateMillis == 0 || state.nextUpdateMillis - state.nextUpdateWindowMillis > nowMillis) {
+					continue;
+				}
+				if (!interactive && state.pauseWhenIdle) {
+					// nobody sees the widget, refresh it when the user is back
+					ScreenMonitor.hold(context, appWidgetId, BalanceWidgetHelper.getIntervalSeconds(context, state, nowMillis));
+					schedule(context, appWidgetId, ScreenMonitor.HOLD_SECONDS);
+					held++;
+					continue;
+				}
+				// the response schedules the next update, the fallback one interval out covers
+				// a request which never answers, e.g. it was cancelled or dropped by the host queue
+				schedule(context, appWidgetId, BalanceWidgetHelper.getIntervalSeconds(context, state, nowMillis));
+				BalanceWidgetHelper.createHttpRequest(context, appWidgetManager, appWidgetId, false);
+				count++;
+			}
+		} finally {
+			mInBatch = false;
+		}
+		FlightRecorder.record(FlightRecorder.ALARM_WAKEUP, count, held);
+		updateAlarm(context);
+	}
+
+	/**
+	 * Restores the widgets after a boot, an upgrade or the periodic update of the host.
+	 * Widgets with a fresh cached balance are shown from the cache, widgets with a pending
+	 * schedule keep it, and overdue widgets are refreshed one by one with a random jitter.
+	 */
+	static synchronized void rehydrate(final Context context, final int[] appWidgetIds) {
+		final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+		final long nowMillis = System.currentTimeMillis();
+		int staggered = 0;
+		mInBatch = true;
+		try {
+			for (int appWidgetId : appWidgetIds) {
+				// the host may have lost the widget views, do not rely on the frame sent before
+				WidgetRenderer.invalidate(appWidgetId);
+				final WidgetState state = WidgetStateStore.get(context, appWidgetId);
+				if (state.isCardList()) {
+					// the rows show the cached balances
+					CardListWidget.updateAppWidget(context, appWidgetManager, state);
+				} else if (BalanceWidgetHelper.hasFreshBalance(context, state, nowMillis)) {
+					// no network request, the balance is served from the cache
+					BalanceWidgetHelper.createHttpRequest(context, appWidgetManager, appWidgetId, false);
+					continue;
+				} else {
+					BalanceWidget.updateAppWidget(context, appWidgetManager, appWidgetId, 0);
+				}
+				if (!state.hasCards() || state.nextUpdateMillis > nowMillis) {
+					continue;
+				}
+				final long delaySeconds = STAGGER_MIN_SECONDS + staggered * STAGGER_STEP_SECONDS + mRandom.nextInt(STAGGER_STEP_SECONDS);
+				schedule(context, appWidgetId, delaySeconds);
+				staggered++;
+			}
+		} finally {
+			mInBatch = false;
+		}
+		FlightRecorder.record(FlightRecorder.REHYDRATED, appWidgetIds.length, staggered);
+		updateAlarm(context);
+	}
+
+	/**
+	 * Sets the alarm for the earliest due widget, or cancels it if no widget is scheduled.
+	 */
+	static synchronized void updateAlarm(final Context context) {
+		final AlarmManager alarm = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		if (alarm == null) {
+			Log.e(TAG, "Could not get AlarmManager system service.");
+			return;
+		}
+		long windowStart = Long.MAX_VALUE;
+		long windowEnd = Long.MAX_VALUE;
+		for (int appWidgetId : getAppWidgetIds(context)) {
+			final WidgetState state = WidgetStateStore.get(context, appWidgetId);
+			if (state.nextUpdateMillis != 0) {
+				windowStart = Math.min(windowStart, state.nextUpdateMillis);
+				windowEnd = Math.min(windowEnd, state.nextUpdateMillis + state.nextUpdateWindowMillis);
+			}
+		}
+
+		if (windowStart == Long.MAX_VALUE) {
+			alarm.cancel(createAlarmIntent(context, 0));
+			return;
+		}
+
+		final long delayMillis = Math.max(0, windowStart - System.currentTimeMillis());
+		final long triggerTime = SystemClock.elapsedRealtime() + delayMillis;
+		final PendingIntent alarmIntent = createAlarmIntent(context, triggerTime);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			// an inexact window lets the system align the wakeup with other alarms and Doze
+			alarm.setWindow(AlarmManager.ELAPSED_REALTIME, triggerTime, windowEnd - windowStart, alarmIntent);
+		} else {
+			alarm.set(AlarmManager.ELAPSED_REALTIME, triggerTime, alarmIntent);
+		}
+	}
+
+	static void cancelAlarm(final Context context) {
+		final AlarmManager alarm = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		if (alarm != null) {
+			alarm.cancel(createAlarmIntent(context, 0));
+		}
+	}
+
+	/**
+	 * A quarter of the delay, so long update intervals tolerate more batching than short ones.
+	 */
+	private static long getWindowMillis(long delayMillis) {
+		return Math.max(MIN_WINDOW_MILLIS, Math.min(MAX_WINDOW_MILLIS, delayMillis / 4));
+	}
+
+	/**
+	 * @return the widgets of both providers
+	 */
+	static int[] getAppWidgetIds(final Context context) {
+		final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+		final int[] cardIds = appWidgetManager.getAppWidgetIds(new ComponentName(context, BalanceWidget.class));
+		final int[] listIds = appWidgetManager.getAppWidgetIds(new ComponentName(context, CardListWidget.class));
+		final int[] appWidgetIds = Arrays.copyOf(cardIds, cardIds.length + listIds.length);
+		System.arraycopy(listIds, 0, appWidgetIds, cardIds.length, listIds.length);
+		return appWidgetIds;
+	}
+
+	/**
+	 * @param triggerMillis elapsed realtime the alarm is set for, delivered back to measure the drift
+	 */
+	private static PendingIntent createAlarmIntent(final Context context, long triggerMillis) {
+		final Intent intent = new Intent(context, BalanceWidget.class);
+		intent.setAction(BalanceWidget.ACTION_WIDGET_SCHEDULE);
+		intent.putExtra(EXTRA_TRIGGER_MILLIS, triggerMillis);
+		return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+
+import java.util.Random;
+
+import sk.hidasi.balance_tr.core.Backoff;
+import sk.hidasi.balance_tr.core.Clock;
+import sk.hidasi.balance_tr.core.RetryPolicy;
+
+/**
+ * The {@link RetryPolicy} of the cards, persisted to shared preferences.
+ * See {@link Backoff} for the retry timing.
+ */
+class RetryTracker {
+
+	private static final String PREFS_NAME = "sk.hidasi.balance_tr.RetryTracker";
+
+	private static RetryPolicy mPolicy;
+
+	static synchronized RetryPolicy getPolicy(final Context context) {
+		if (mPolicy == null) {
+			final PreferencesStorage storage = new PreferencesStorage(context.getApplicationContext().getSharedPreferences(PREFS_NAME, 0));
+			mPolicy = new RetryPolicy(storage, Clock.SYSTEM, new Random());
+		}
+		return mPolicy;
+	}
+
+	static RetryPolicy.Entry get(final Context context, final String cardKey) {
+		return getPolicy(context).get(cardKey);
+	}
+
+	static RetryPolicy.Entry recordFailure(final Context context, final String cardKey, final Backoff.ErrorClass error) {
+		final RetryPolicy.Entry entry = getPolicy(context).recordFailure(cardKey, error);
+		if (entry.circuitOpenUntil != 0) {
+			FlightRecorder.record(FlightRecorder.CIRCUIT_OPENED, entry.failures, error.ordinal());
+		}
+		return entry;
+	}
+
+	static void reset(final Context context, final String cardKey) {
+		getPolicy(context).reset(cardKey);
+	}
+
+	static void clear(final Context context) {
+		getPolicy(context).clear();
+	}
+}
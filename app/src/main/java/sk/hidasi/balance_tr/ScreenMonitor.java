@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.app.KeyguardManager;
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+/**
+ * Holds back the scheduled refreshes of widgets which opted in while the device is not in
+ * use, nobody sees the widget then. A receiver is registered only while some widget is held,
+ * and all held widgets are refreshed in one batch when the user unlocks the device, or turns
+ * the screen on without a lock. Every card is fetched once in the batch, so only its newest
+ * balance is rendered. A held widget keeps a long fallback schedule, e.g. for the case the
+ * process is killed in the meantime.
+ * <p>
+ * When a widget is released, the refreshes it would have made while held are recorded,
+ * i.e. its first due refresh and one per update interval after it.
+ */
+class ScreenMonitor {
+
+	// the fallback refresh of a held widget, which holds it again if the device is still idle
+	static final long HOLD_SECONDS = 60 * 60;
+
+	// elapsed realtime of the first held refresh and the update interval of the held widgets,
+	// SparseLongArray needs API 18
+	private static final SparseArray<Long> mHeldSince = new SparseArray<>();
+	private static final SparseArray<Long> mIntervals = new SparseArray<>();
+	private static BroadcastReceiver mReceiver;
+
+	/**
+	 * @return true if the screen is on, i.e. the user may be looking at the widget
+	 */
+	static boolean isInteractive(final Context context) {
+		final PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+		if (powerManager == null) {
+			return true;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+			return powerManager.isInteractive();
+		}
+		//noinspection deprecation
+		return powerManager.isScreenOn();
+	}
+
+	/**
+	 * Refreshes the widget once the user is present.
+	 *
+	 * @param intervalSeconds the update interval of the widget, to count the skipped refreshes
+	 */
+	static synchronized void hold(final Context context, int appWidgetId, long intervalSeconds) {
+		if (mHeldSince.indexOfKey(appWidgetId) < 0) {
+			mHeldSince.put(appWidgetId, SystemClock.elapsedRealtime());
+		}
+		mIntervals.put(appWidgetId, Math.max(1, intervalSeconds) * 1000);
+		if (mReceiver == null) {
+			register(context.getApplicationContext());
+		}
+	}
+
+	static synchronized void release(final Context context, int appWidgetId) {
+		final int index = mHeldSince.indexOfKey(appWidgetId);
+		if (index < 0) {
+			return;
+		}
+		Metrics.record(Metrics.IDLE_SKIPPED, getSkipped(index, SystemClock.elapsedRealtime()));
+		mHeldSince.removeAt(index);
+		mIntervals.delete(appWidgetId);
+		if (mHeldSince.size() == 0) {
+			unregister(context.getApplicationContext());
+		}
+	}
+
+	/**
+	 * @return the number of refreshes which were due while the widget was held
+	 */
+	private static long getSkipped(int index, long nowMillis) {
+		final long heldMillis = nowMillis - mHeldSince.valueAt(index);
+		final Long intervalMillis = mIntervals.get(mHeldSince.keyAt(index));
+		return 1 + (intervalMillis != null ? heldMillis / intervalMillis : 0);
+	}
+
+	private static void register(final Context appContext) {
+		mReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				if (Intent.ACTION_USER_PRESENT.equals(intent.getAction()) || !isLocked(appContext)) {
+					flush(appContext);
+				}
+			}
+		};
+		final IntentFilter filter = new IntentFilter(Intent.ACTION_USER_PRESENT);
+		filter.addAction(Intent.ACTION_SCREEN_ON);
+		FlightRecorder.record(FlightRecorder.SCREEN_WAIT, mHeldSince.size());
+		// both broadcasts are delivered to registered receivers only
+		appContext.registerReceiver(mReceiver, filter);
+	}
+
+	private static void unregister(final Context appContext) {
+		if (mReceiver == null) {
+			return;
+		}
+		appContext.unregisterReceiver(mReceiver);
+		mReceiver = null;
+	}
+
+	private static boolean isLocked(final Context context) {
+		final KeyguardManager keyguardManager = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+		return keyguardManager != null && keyguardManager.isKeyguardLocked();
+	}
+
+	private static void flush(final Context appContext) {
+		final int[] appWidgetIds;
+		synchronized (ScreenMonitor.class) {
+			final long nowMillis = SystemClock.elapsedRealtime();
+			appWidgetIds = new int[mHeldSince.size()];
+			for (int i = 0; i < appWidgetIds.length; i++) {
+				appWidgetIds[i] = mHeldSince.keyAt(i);
+				Metrics.record(Metrics.IDLE_SKIPPED, getSkipped(i, nowMillis));
+			}
+			mHeldSince.clear();
+			mIntervals.clear();
+			unregister(appContext);
+		}
+		if (appWidgetIds.length == 0) {
+			return;
+		}
+		FlightRecorder.record(FlightRecorder.USER_PRESENT, appWidgetIds.length);
+		Metrics.record(Metrics.IDLE_CAUGHT_UP, appWidgetIds.length);
+		// receivers run on the main thread, refresh on the widget worker
+		WidgetWorker.execute(() -> {
+			FetchEngine.beginBatch();
+			final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(appContext);
+			for (int appWidgetId : appWidgetIds) {
+				BalanceWidgetHelper.createHttpRequest(appContext, appWidgetManager, appWidgetId, false);
+			}
+		});
+	}
+}
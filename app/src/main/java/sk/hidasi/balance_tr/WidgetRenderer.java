@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.annotation.SuppressLint;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.util.TypedValue;
+import android.widget.RemoteViews;
+
+import androidx.core.content.res.ResourcesCompat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Builds the views shown by a {@link BalanceWidget BalanceWidget}.
+ * <p>
+ * In bitmap mode the balance is drawn into the card art. The card art is drawn once per
+ * theme, density and size bucket at the exact pixel size of the bucket, but never larger
+ * than the bundled art of the highest density, the host scales larger frames. Card art and
+ * finished frames are kept in small LRU caches, so resizing a widget back and forth does
+ * not redraw it.
+ * In text mode the card art is a static drawable of the layout and only the balance text
+ * is sent to the widget host, which keeps the binder transaction small.
+ * <p>
+ * The size of a widget is the side of the square card art in dp, rounded up to a multiple
+ * of {@link #SIZE_STEP_DP}. It is reported by the host, see {@link #setSize}.
+ * <p>
+ * The key of the frame last sent to each widget is remembered, so an update which would
+ * not change the widget can skip the binder call altogether.
+ */
+class WidgetRenderer {
+
+	private static final int FRAME_CACHE_BYTES = 2 * 1024 * 1024;
+	private static final int BASE_CACHE_BYTES = 1024 * 1024;
+	// approximate size of the parceled RemoteViews without the bitmap and the text
+	private static final int PAYLOAD_OVERHEAD_BYTES = 512;
+
+	// the intrinsic size of the card art, used until the host reports the widget size
+	private static final int DEFAULT_SIZE_DP = 64;
+	private static final int MIN_SIZE_DP = 40;
+	private static final int MAX_SIZE_DP = 128;
+	private static final int SIZE_STEP_DP = 8;
+	// the size of the xxxhdpi card art, frames are never drawn larger
+	private static final int ART_PIXELS = 256;
+
+	// keyed by the size in pixels and the theme
+	private static final LruCache<Integer, Bitmap> mBaseBitmaps = new LruCache<Integer, Bitmap>(BASE_CACHE_BYTES) {
+		@Override
+		protected int sizeOf(Integer key, Bitmap bitmap) {
+			return bitmap.getByteCount();
+		}
+	};
+	private static final SparseArray<String> mSentFrames = new SparseArray<>();
+	private static final SparseIntArray mSizes = new SparseIntArray();
+	private static final LruCache<String, Bitmap> mFrames = new LruCache<String, Bitmap>(FRAME_CACHE_BYTES) {
+		@Override
+		protected int sizeOf(String key, Bitmap bitmap) {
+			return bitmap.getByteCount();
+		}
+	};
+	private static final Paint mTextPaint = new Paint();
+	@SuppressLint("SimpleDateFormat")
+	private static final SimpleDateFormat mDateFormat = new SimpleDateFormat("HH:mm dd.MM.yyyy");
+	private static int mDensityDpi;
+
+	static {
+		mTextPaint.setStyle(Paint.Style.FILL);
+		mTextPaint.setTextAlign(Paint.Align.CENTER);
+		mTextPaint.setAntiAlias(true);
+		mTextPaint.setTypeface(Typeface.DEFAULT_BOLD);
+	}
+
+	/**
+	 * A key identifying everything drawn into the frame of the given widget state.
+	 */
+	static synchronized String getFrameKey(final Context context, final WidgetState state) {
+		final StringBuilder key = new StringBuilder();
+		key.append(state.darkTheme ? 'D' : 'L').append(state.updateFailed ? 'F' : 'O');
+		if (state.textMode) {
+			key.append('T').append(getSizeDp(context, state.appWidgetId));
+		} else {
+			key.append(getSizePixels(context, state.appWidgetId));
+		}
+		key.append('|');
+		if (state.text != null) {
+			key.append(state.text);
+			final String debugDate = getDebugDate(context, state);
+			if (debugDate != null) {
+				key.append('|').append(debugDate);
+			}
+		}
+		return key.toString();
+	}
+
+	static synchronized RemoteViews createViews(final Context context, final WidgetState state, final String frameKey) {
+		final RemoteViews views;
+		if (state.textMode) {
+			views = new RemoteViews(context.getPackageName(), R.layout.balance_widget_text);
+			views.setImageViewResource(R.id.imageView, state.darkTheme ? R.drawable.ic_widget_dark : R.drawable.ic_widget);
+			views.setTextViewText(R.id.balanceText, state.text != null ? state.text : "");
+			final int color = state.darkTheme ? Color.WHITE : Color.BLACK;
+			views.setTextColor(R.id.balanceText, state.updateFailed ? (color & 0x00FFFFFF) | 0xC0000000 : color);
+			final float textSize = context.getResources().getDimension(R.dimen.widget_text_size);
+			views.setTextViewTextSize(R.id.balanceText, TypedValue.COMPLEX_UNIT_PX, textSize * getSizeDp(context, state.appWidgetId) / DEFAULT_SIZE_DP);
+			Metrics.record(Metrics.RENDER_PAYLOAD, PAYLOAD_OVERHEAD_BYTES + (state.text != null ? 2 * state.text.length() : 0));
+		} else {
+			views = new RemoteViews(context.getPackageName(), R.layout.balance_widget);
+			final Bitmap frame = getFrame(context, state, frameKey);
+			views.setImageViewBitmap(R.id.imageView, frame);
+			// estimated, parceling the views only to measure them would double the cost of the update
+			Metrics.record(Metrics.RENDER_PAYLOAD, PAYLOAD_OVERHEAD_BYTES + frame.getByteCount());
+		}
+		return views;
+	}
+
+	private static Bitmap getFrame(final Context context, final WidgetState state, final String frameKey) {
+		Bitmap frame = mFrames.get(frameKey);
+		if (frame == null) {
+			frame = drawFrame(context, state);
+			mFrames.put(frameKey, frame);
+		}
+		return frame;
+	}
+
+	/**
+	 * @return true if the widget does not show the frame yet
+	 */
+	static synchronized boolean needsUpdate(int appWidgetId, final String frameKey) {
+		return !frameKey.equals(mSentFrames.get(appWidgetId));
+	}
+
+	static synchronized void setSent(int appWidgetId, final String frameKey) {
+		mSentFrames.put(appWidgetId, frameKey);
+	}
+
+	/**
+	 * Forgets the frame last sent to the widget, e.g. when the host asks for a full update.
+	 */
+	static synchronized void invalidate(int appWidgetId) {
+		mSentFrames.remove(appWidgetId);
+	}
+
+	/**
+	 * Records the size of the widget from the options reported by the host.
+	 *
+	 * @return true if the widget moved to another size bucket
+	 */
+	static synchronized boolean setSize(final Context context, int appWidgetId, final Bundle options) {
+		final int sizeDp = getSizeBucket(context, options);
+		final boolean changed = mSizes.get(appWidgetId) != sizeDp;
+		mSizes.put(appWidgetId, sizeDp);
+		return changed;
+	}
+
+	static synchronized void removeSize(int appWidgetId) {
+		mSizes.delete(appWidgetId);
+	}
+
+	private static int getSizeDp(final Context context, int appWidgetId) {
+		int sizeDp = mSizes.get(appWidgetId);
+		if (sizeDp == 0) {
+			// e.g. in a new process, the host keeps the options of the widget
+			sizeDp = getSizeBucket(context, AppWidgetManager.getInstance(context).getAppWidgetOptions(appWidgetId));
+			mSizes.put(appWidgetId, sizeDp);
+		}
+		return sizeDp;
+	}
+
+	/**
+	 * @return the side of the frame in pixels, capped at the resolution of the card art
+	 */
+	private static int getSizePixels(final Context context, int appWidgetId) {
+		return Math.min(ART_PIXELS, Math.round(getSizeDp(context, appWidgetId) * context.getResources().getDisplayMetrics().density));
+	}
+
+	private static int getSizeBucket(final Context context, final Bundle options) {
+		final int minWidth = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH) : 0;
+		final int maxWidth = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH) : 0;
+		final int minHeight = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT) : 0;
+		final int maxHeight = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT) : 0;
+		if (minWidth == 0 || minHeight == 0) {
+			return DEFAULT_SIZE_DP;
+		}
+		// portrait uses the min width and the max height, landscape the max width and the min height,
+		// the frame is drawn for the larger of both
+		final int cellDp = Math.max(Math.min(minWidth, Math.max(maxHeight, minHeight)), Math.min(Math.max(maxWidth, minWidth), minHeight));
+		final Resources resources = context.getResources();
+		final int marginDp = Math.round(resources.getDimension(R.dimen.widget_margin) / resources.getDisplayMetrics().density);
+		final int sizeDp = (cellDp - 2 * marginDp + SIZE_STEP_DP - 1) / SIZE_STEP_DP * SIZE_STEP_DP;
+		return Math.max(MIN_SIZE_DP, Math.min(MAX_SIZE_DP, sizeDp));
+	}
+
+	private static Bitmap drawFrame(final Context context, final WidgetState state) {
+		final long drawStart = Metrics.start();
+		final Bitmap bmp = getBaseBitmap(context, state.darkTheme, getSizePixels(context, state.appWidgetId)).copy(Bitmap.Config.ARGB_8888, true);
+		final String widgetText = state.text;
+		if (widgetText != null) {
+			final Canvas canvas = new Canvas(bmp);
+			final int width = canvas.getWidth();
+			final int height = canvas.getHeight();
+
+			mTextPaint.setColor(state.darkTheme ? Color.WHITE : Color.BLACK);
+			mTextPaint.setAlpha(state.updateFailed ? 192 : 255);
+			mTextPaint.setTextSize(height * 0.23f);
+
+			int xPos = (int) (0.54 * width);
+			int yPos = (int) (0.56 * height - (mTextPaint.descent() + mTextPaint.ascent()) / 2.);
+			canvas.drawText(widgetText, xPos, yPos, mTextPaint);
+
+			final String debugDate = getDebugDate(context, state);
+			if (debugDate != null) {
+				mTextPaint.setTextSize(height * 0.1f);
+				canvas.drawText(debugDate, xPos, (int) (yPos + 0.3 * height), mTextPaint);
+			}
+		}
+		Metrics.recordSince(Metrics.RENDER_DRAW, drawStart);
+		return bmp;
+	}
+
+	private static String getDebugDate(final Context context, final WidgetState state) {
+		if (BuildConfig.DEBUG && !state.textMode && state.lastUpdateSuccess > 0 && !context.getString(R.string.widget_text_loading).equals(state.text)) {
+			return mDateFormat.format(new Date(state.lastUpdateSuccess));
+		}
+		return null;
+	}
+
+	/**
+	 * The card art of the given size in pixels with the widget transparency already applied.
+	 * The returned bitmap is shared and immutable, frames draw into a copy.
+	 */
+	private static Bitmap getBaseBitmap(final Context context, boolean darkTheme, int sizePixels) {
+		final Resources resources = context.getResources();
+		final int densityDpi = resources.getDisplayMetrics().densityDpi;
+		if (densityDpi != mDensityDpi) {
+			mBaseBitmaps.evictAll();
+			mFrames.evictAll();
+			mDensityDpi = densityDpi;
+		}
+		final int key = sizePixels << 1 | (darkTheme ? 1 : 0);
+		Bitmap base = mBaseBitmaps.get(key);
+		if (base == null) {
+			final long decodeStart = Metrics.start();
+			// the art of the highest density is filtered down to the size, never scaled up from a smaller one
+			final Drawable art = ResourcesCompat.getDrawableForDensity(resources, darkTheme ? R.drawable.ic_widget_dark : R.drawable.ic_widget,
+					DisplayMetrics.DENSITY_XXXHIGH, null);
+			base = Bitmap.createBitmap(sizePixels, sizePixels, Bitmap.Config.ARGB_8888);
+			final Canvas canvas = new Canvas(base);
+			if (art != null) {
+				art.setBounds(0, 0, sizePixels, sizePixels);
+				art.draw(canvas);
+			}
+			canvas.drawColor(0xE6FFFFFF, PorterDuff.Mode.DST_IN);
+			// shared by all frames of the size, published immutable
+			base = base.copy(Bitmap.Config.ARGB_8888, false);
+			mBaseBitmaps.put(key, base);
+			Metrics.recordSince(Metrics.RENDER_DECODE, decodeStart);
+		}
+		return base;
+	}
+}
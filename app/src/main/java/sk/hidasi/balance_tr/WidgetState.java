@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import sk.hidasi.balance_tr.core.Card;
+
+/**
+ * Configuration and last displayed state of one {@link BalanceWidget BalanceWidget} or
+ * {@link CardListWidget CardListWidget} instance.
+ * Instances are loaded and saved as a whole by {@link WidgetStateStore}.
+ */
+class WidgetState {
+
+	static final int DEFAULT_UPDATE_MINUTES = 30;
+	/** update interval learned from the balance history, see {@link AdaptivePolling} */
+	static final int UPDATE_AUTO = 0;
+	static final int DEFAULT_DAILY_BUDGET = 48;
+
+	private static final int FLAG_DARK_THEME = 1;
+	private static final int FLAG_UPDATE_FAILED = 1 << 1;
+	private static final int FLAG_TEXT_MODE = 1 << 2;
+	private static final int FLAG_PAUSE_WHEN_IDLE = 1 << 3;
+
+	private static final String[] NO_CARDS = {};
+
+	final int appWidgetId;
+	String serial;
+	String fourDigits;
+	int updateMinutes = DEFAULT_UPDATE_MINUTES;
+	int dailyBudget = DEFAULT_DAILY_BUDGET;
+	boolean darkTheme;
+	boolean textMode;
+	// scheduled refreshes wait until the device is in use, see ScreenMonitor
+	boolean pauseWhenIdle;
+	String text;
+	boolean updateFailed;
+	long lastUpdateSuccess;
+	long nextUpdateMillis;
+	long nextUpdateWindowMillis;
+	// keys of the cards listed by a card list widget, the serial and four digits are not used then,
+	// the array is replaced and never modified
+	String[] cards = NO_CARDS;
+
+	WidgetState(int appWidgetId) {
+		this.appWidgetId = appWidgetId;
+	}
+
+	WidgetState copy() {
+		final WidgetState state = new WidgetState(appWidgetId);
+		state.serial = serial;
+		state.fourDigits = fourDigits;
+		state.updateMinutes = updateMinutes;
+		state.dailyBudget = dailyBudget;
+		state.darkTheme = darkTheme;
+		state.textMode = textMode;
+		state.pauseWhenIdle = pauseWhenIdle;
+		state.text = text;
+		state.updateFailed = updateFailed;
+		state.lastUpdateSuccess = lastUpdateSuccess;
+		state.nextUpdateMillis = nextUpdateMillis;
+		state.nextUpdateWindowMillis = nextUpdateWindowMillis;
+		state.cards = cards;
+		return state;
+	}
+
+	boolean hasValidCard() {
+		return Card.isValid(serial, fourDigits);
+	}
+
+	boolean isCardList() {
+		return cards.length > 0;
+	}
+
+	/**
+	 * @return true if the widget shows at least one card which can be refreshed
+	 */
+	boolean hasCards() {
+		return hasValidCard() || isCardList();
+	}
+
+	boolean isAutoUpdate() {
+		return updateMinutes == UPDATE_AUTO;
+	}
+
+	void writeTo(final DataOutputStream out) throws IOException {
+		writeString(out, serial);
+		writeString(out, fourDigits);
+		writeString(out, text);
+		out.writeShort(updateMinutes);
+		out.writeByte((darkTheme ? FLAG_DARK_THEME : 0) | (updateFailed ? FLAG_UPDATE_FAILED : 0) | (textMode ? FLAG_TEXT_MODE : 0)
+				| (pauseWhenIdle ? FLAG_PAUSE_WHEN_IDLE : 0));
+		// formerly the time of the last click, kept in memory only now
+		out.writeLong(0);
+		out.writeLong(lastUpdateSuccess);
+		out.writeLong(nextUpdateMillis);
+		out.writeLong(nextUpdateWindowMillis);
+		out.writeShort(dailyBudget);
+		out.writeShort(cards.length);
+		for (String card : cards) {
+			out.writeUTF(card);
+		}
+	}
+
+	static WidgetState readFrom(int appWidgetId, int version, final DataInputStream in) throws IOException {
+		final WidgetState state = new WidgetState(appWidgetId);
+		state.serial = readString(in);
+		state.fourDigits = readString(in);
+		state.text = readString(in);
+		state.updateMinutes = in.readUnsignedShort();
+		final int flags = in.readUnsignedByte();
+		state.darkTheme = (flags & FLAG_DARK_THEME) != 0;
+		state.updateFailed = (flags & FLAG_UPDATE_FAILED) != 0;
+		state.textMode = (flags & FLAG_TEXT_MODE) != 0;
+		state.pauseWhenIdle = (flags & FLAG_PAUSE_WHEN_IDLE) != 0;
+		in.readLong();
+		state.lastUpdateSuccess = in.readLong();
+		if (version >= 2) {
+			state.nextUpdateMillis = in.readLong();
+			state.nextUpdateWindowMillis = in.readLong();
+		}
+		if (version >= 3) {
+			state.dailyBudget = in.readUnsignedShort();
+		}
+		if (version >= 4) {
+			final String[] cards = new String[in.readUnsignedShort()];
+			for (int i = 0; i < cards.length; i++) {
+				cards[i] = in.readUTF();
+			}
+			state.cards = cards.length > 0 ? cards : NO_CARDS;
+		}
+		return state;
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
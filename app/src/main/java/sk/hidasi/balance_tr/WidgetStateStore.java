@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import androidx.annotation.VisibleForTesting;
+import androidx.core.util.AtomicFile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent store of {@link WidgetState} records, one small binary file per widget.
+ * All records are kept in memory, saving a state updates the memory copy at once and
+ * writes the file on a background thread. The writer runs {@link #WRITE_DELAY_MILLIS} after
+ * the first pending save and writes the last saved state of each widget, so the saves of
+ * widgets refreshed together, e.g. by one alarm, are coalesced into one write per file.
+ * The work of a broadcast waits for its writes before it finishes, see {@link WidgetWorker},
+ * because the process may be killed right after it. Saves of deleted widgets are dropped,
+ * widget ids are never reused.
+ */
+class WidgetStateStore {
+
+	private static final String TAG = WidgetStateStore.class.getSimpleName();
+
+	private static final String DIR_NAME = "widgets";
+	private static final int VERSION = 4;
+	private static final long WRITE_DELAY_MILLIS = 1000;
+
+	// preferences used before the widget state store was introduced
+	private static final String LEGACY_PREFS_NAME = "sk.hidasi.balance_tr.BalanceWidget";
+	private static final String LEGACY_PREFIX_TEXT = "appwidget_text_";
+	private static final String LEGACY_PREFIX_SERIAL = "appwidget_serial_";
+	private static final String LEGACY_PREFIX_FOUR_DIGITS = "appwidget_four_digits_";
+	private static final String LEGACY_PREFIX_UPDATE_MINUTES = "appwidget_update_minutes_";
+	private static final String LEGACY_PREFIX_DARK_THEME = "appwidget_dark_theme_";
+	private static final String LEGACY_PREFIX_UPDATE_FAILED = "appwidget_update_failed_";
+	private static final String LEGACY_PREFIX_LAST_UPDATE_SUCCESS = "appwidget_last_update_success_";
+
+	private static final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor();
+	private static final SparseArray<WidgetState> mDirty = new SparseArray<>();
+	private static final SparseBooleanArray mDeleted = new SparseBooleanArray();
+	private static SparseArray<WidgetState> mStates;
+	private static File mDir;
+
+	/**
+	 * @return a copy of the stored state, or a new default state for an unknown widget
+	 */
+	static synchronized WidgetState get(final Context context, int appWidgetId) {
+		final WidgetState state = getStates(context).get(appWidgetId);
+		return state != null ? state.copy() : new WidgetState(appWidgetId);
+	}
+
+	static synchronized void save(final Context context, final WidgetState state) {
+		if (mDeleted.get(state.appWidgetId)) {
+			// e.g. a response which arrived after the widget was removed
+			return;
+		}
+		final WidgetState stored = state.copy();
+		getStates(context).put(state.appWidgetId, stored);
+		mDirty.put(state.appWidgetId, stored);
+		if (mDirty.size() == 1) {
+			mWriter.schedule(WidgetStateStore::flush, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	static synchronized void delete(final Context context, int appWidgetId) {
+		getStates(context).remove(appWidgetId);
+		mDirty.remove(appWidgetId);
+		mDeleted.put(appWidgetId, true);
+		// deleted on the writer thread, so a pending write cannot recreate the file
+		final File file = getFile(appWidgetId);
+		mWriter.execute(() -> new AtomicFile(file).delete());
+	}
+
+	/**
+	 * Writes the pending saves without waiting for the write delay.
+	 */
+	static void awaitWrites() throws InterruptedException, ExecutionException {
+		mWriter.submit(WidgetStateStore::flush).get();
+	}
+
+	/**
+	 * Drops the memory copy of the states, the next access reads the files again.
+	 */
+	@VisibleForTesting
+	static void evict() throws InterruptedException, ExecutionException {
+		awaitWrites();
+		synchronized (WidgetStateStore.class) {
+			mStates = null;
+		}
+	}
+
+	/**
+	 * Forgets the removed widgets, so their ids can be saved again.
+	 */
+	@VisibleForTesting
+	static synchronized void clearDeleted() {
+		mDeleted.clear();
+	}
+
+	private static void flush() {
+		final WidgetState[] states;
+		synchronized (WidgetStateStore.class) {
+			states = new WidgetState[mDirty.size()];
+			for (int i = 0; i < states.length; i++) {
+				states[i] = mDirty.valueAt(i);
+			}
+			mDirty.clear();
+		}
+		for (WidgetState state : states) {
+			write(state);
+		}
+	}
+
+	/**
+	 * @return false if the file could not be written
+	 */
+	private static boolean write(final WidgetState state) {
+		final long writeStart = Metrics.start();
+		final AtomicFile file = new AtomicFile(getFile(state.appWidgetId));
+		FileOutputStream stream = null;
+		try {
+			stream = file.startWrite();
+			final DataOutputStream out = new DataOutputStream(stream);
+			out.writeByte(VERSION);
+			state.writeTo(out);
+			out.flush();
+			file.finishWrite(stream);
+			Metrics.recordSince(Metrics.STORE_WRITE, writeStart);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Could not write widget state: " + e.getMessage());
+			if (stream != null) {
+				file.failWrite(stream);
+			}
+			return false;
+		}
+	}
+
+	private static SparseArray<WidgetState> getStates(final Context context) {
+		if (mStates == null) {
+			mDir = new File(context.getFilesDir(), DIR_NAME);
+			if (!mDir.isDirectory() && !mDir.mkdirs()) {
+				Log.e(TAG, "Could not create " + mDir);
+			}
+			mStates = new SparseArray<>();
+			final long readStart = Metrics.start();
+			final String[] names = mDir.list();
+			if (names != null) {
+				for (String name : names) {
+					read(name);
+				}
+			}
+			Metrics.recordSince(Metrics.STORE_READ, readStart);
+			migrateLegacyPrefs(context);
+		}
+		return mStates;
+	}
+
+	private static void read(final String name) {
+		// a backup file is left behind by an interrupted write, AtomicFile restores it on read
+		final String baseName = name.endsWith(".bak") ? name.substring(0, name.length() - 4) : name;
+		final int appWidgetId;
+		try {
+			appWidgetId = Integer.parseInt(baseName);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		try (FileInputStream stream = new AtomicFile(getFile(appWidgetId)).openRead()) {
+			final DataInputStream in = new DataInputStream(stream);
+			final int version = in.readUnsignedByte();
+			if (version <= VERSION) {
+				mStates.put(appWidgetId, WidgetState.readFrom(appWidgetId, version, in));
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not read widget state: " + e.getMessage());
+		}
+	}
+
+	private static File getFile(int appWidgetId) {
+		return new File(mDir, Integer.toString(appWidgetId));
+	}
+
+	private static void migrateLegacyPrefs(final Context context) {
+		final SharedPreferences prefs = context.getSharedPreferences(LEGACY_PREFS_NAME, 0);
+		final Map<String, ?> all = prefs.getAll();
+		if (all.isEmpty()) {
+			return;
+		}
+		boolean written = true;
+		for (String key : all.keySet()) {
+			if (!key.startsWith(LEGACY_PREFIX_SERIAL)) {
+				continue;
+			}
+			final int appWidgetId;
+			try {
+				appWidgetId = Integer.parseInt(key.substring(LEGACY_PREFIX_SERIAL.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (mStates.get(appWidgetId) != null) {
+				// written by an earlier, partly failed migration
+				continue;
+			}
+			final WidgetState state = new WidgetState(appWidgetId);
+			state.serial = prefs.getString(LEGACY_PREFIX_SERIAL + appWidgetId, null);
+			state.fourDigits = prefs.getString(LEGACY_PREFIX_FOUR_DIGITS + appWidgetId, null);
+			state.updateMinutes = prefs.getInt(LEGACY_PREFIX_UPDATE_MINUTES + appWidgetId, WidgetState.DEFAULT_UPDATE_MINUTES);
+			state.darkTheme = prefs.getBoolean(LEGACY_PREFIX_DARK_THEME + appWidgetId, false);
+			state.text = prefs.getString(LEGACY_PREFIX_TEXT + appWidgetId, null);
+			state.updateFailed = prefs.getBoolean(LEGACY_PREFIX_UPDATE_FAILED + appWidgetId, false);
+			state.lastUpdateSuccess = prefs.getLong(LEGACY_PREFIX_LAST_UPDATE_SUCCESS + appWidgetId, 0);
+			mStates.put(appWidgetId, state);
+			// written synchronously, the old preferences are cleared only after all records exist
+			written &= write(state);
+		}
+		FlightRecorder.record(FlightRecorder.STATE_MIGRATED, mStates.size());
+		if (written) {
+			prefs.edit().clear().commit();
+		} else {
+			// the migration is retried the next time the records are loaded
+			Log.e(TAG, "Could not migrate all widgets, keeping the old preferences");
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr;
+
+import android.content.BroadcastReceiver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background thread for the widget pipeline. Responses are parsed on the network threads,
+ * persisting the state and rendering the frames runs here, and only the final
+ * AppWidgetManager call goes to the system. A single thread keeps the widget updates in
+ * order. The work of broadcasts and the responses are never dropped, only optional work
+ * like saving the metrics is skipped when the queue is long.
+ */
+class WidgetWorker {
+
+	private static final String TAG = WidgetWorker.class.getSimpleName();
+
+	private static final int QUEUE_CAPACITY = 64;
+
+	/**
+	 * Broadcast receivers must finish within 10 seconds, stay well below that.
+	 */
+	private static final long RECEIVER_DEADLINE_MILLIS = 8000;
+
+	private static final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(1, 1,
+			30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+				final Thread thread = new Thread(runnable, TAG);
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			});
+	private static final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	static {
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Runs the work of a broadcast in the background. The pending result is finished when
+	 * the work and its state writes complete, or by the watchdog before the broadcast
+	 * deadline at the latest.
+	 */
+	static void execute(final BroadcastReceiver receiver, final Runnable work) {
+		final BroadcastReceiver.PendingResult pendingResult = receiver.goAsync();
+		final AtomicBoolean finished = new AtomicBoolean();
+		final Runnable finish = () -> {
+			if (finished.compareAndSet(false, true) && pendingResult != null) {
+				pendingResult.finish();
+			}
+		};
+		final Runnable watchdog = () -> {
+			if (!finished.get()) {
+				Log.w(TAG, "Broadcast work exceeded the deadline");
+				finish.run();
+			}
+		};
+		mMainHandler.postDelayed(watchdog, RECEIVER_DEADLINE_MILLIS);
+		execute(() -> {
+			try {
+				work.run();
+			} finally {
+				// the process may be killed once the broadcast finishes, do not leave the writes delayed
+				awaitStateWrites();
+				mMainHandler.removeCallbacks(watchdog);
+				finish.run();
+			}
+		});
+	}
+
+	private static void awaitStateWrites() {
+		try {
+			WidgetStateStore.awaitWrites();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Could not write widget states: " + e.getMessage());
+		}
+	}
+
+	static void execute(final Runnable work) {
+		mExecutor.execute(work);
+	}
+
+	/**
+	 * Runs work which may be skipped, e.g. because it is repeated later anyway.
+	 *
+	 * @return false if the queue is long and the work was dropped
+	 */
+	static boolean offer(final Runnable work) {
+		if (mExecutor.getQueue().size() >= QUEUE_CAPACITY) {
+			Log.w(TAG, "Work queue full, dropping optional work");
+			return false;
+		}
+		mExecutor.execute(work);
+		return true;
+	}
+
+	/**
+	 * Executor for delivering responses of the request queue to the worker thread.
+	 * A response is never dropped and never handled on another thread.
+	 */
+	static Executor getDeliveryExecutor() {
+		return mExecutor;
+	}
+
+	static void runOnMainThread(final Runnable work) {
+		mMainHandler.post(work);
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import java.util.Random;
+
+/**
+ * Retry timing of failed balance requests: jittered exponential backoff per error class
+ * and a circuit breaker which stops polling a card that keeps failing. Only answers about
+ * the card itself open the circuit, an outage of the network or of the server is retried
+ * with the longest backoff delay until it ends.
+ */
+public final class Backoff {
+
+	public enum ErrorClass {
+		/** no connection, timeout or another transport failure */
+		NETWORK(15 * 1000L, 0),
+		/** HTTP error status, usually 5xx */
+		SERVER(60 * 1000L, 0),
+		/** response which is not the expected JSON */
+		MALFORMED(5 * 60 * 1000L, 5),
+		/** result=false, e.g. wrong card numbers or an expired card */
+		REJECTED(30 * 60 * 1000L, 4);
+
+		final long baseMillis;
+		// consecutive failures of this class which open the circuit, 0 never opens it
+		final int circuitFailures;
+
+		ErrorClass(long baseMillis, int circuitFailures) {
+			this.baseMillis = baseMillis;
+			this.circuitFailures = circuitFailures;
+		}
+	}
+
+	public static final long MAX_DELAY_MILLIS = 6 * 60 * 60 * 1000L;
+	public static final long CIRCUIT_OPEN_MILLIS = 12 * 60 * 60 * 1000L;
+
+	/**
+	 * @param failures number of consecutive failures of the error class, at least 1
+	 */
+	public static long getDelayMillis(final ErrorClass error, int failures, final Random random) {
+		final int exponent = Math.max(0, Math.min(failures - 1, 20));
+		final long delay = Math.min(MAX_DELAY_MILLIS, error.baseMillis << exponent);
+		// equal jitter: half of the delay is fixed, the other half random,
+		// so widgets failing at the same time do not retry in lockstep
+		return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+
+	public static boolean shouldOpenCircuit(final ErrorClass error, int failures) {
+		return error.circuitFailures > 0 && failures >= error.circuitFailures;
+	}
+}
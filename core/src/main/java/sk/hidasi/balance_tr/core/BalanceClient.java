@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import java.io.IOException;
+
+/**
+ * Requests the balance of a card over a {@link Transport}, interprets the response and
+ * updates the {@link RetryPolicy} of the card. The device coalesces and throttles its
+ * requests before this point, simulations drive the client directly.
+ */
+public class BalanceClient {
+
+	/** status of a request which got no response, see {@link #classify(int, BalanceResult)} */
+	public static final int NO_RESPONSE = 0;
+
+	public interface Listener {
+
+		/**
+		 * The server answered, with the balance or with result=false.
+		 */
+		void onResult(BalanceResult result);
+
+		void onError(Backoff.ErrorClass error);
+	}
+
+	private final Transport mTransport;
+	private final RetryPolicy mRetryPolicy;
+	private final String mServerUrl;
+
+	public BalanceClient(final Transport transport, final RetryPolicy retryPolicy, final String serverUrl) {
+		mTransport = transport;
+		mRetryPolicy = retryPolicy;
+		mServerUrl = serverUrl;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return mRetryPolicy;
+	}
+
+	/**
+	 * @param fromUser the user asked for the balance, ask even if the circuit of the card is open
+	 * @return false if the card is invalid or its circuit is open and nothing was sent
+	 */
+	public boolean fetch(final String serial, final String fourDigits, boolean fromUser, final Listener listener) {
+		if (!Card.isValid(serial, fourDigits)) {
+			return false;
+		}
+		final String cardKey = Card.getKey(serial, fourDigits);
+		if (!fromUser && mRetryPolicy.isCircuitOpen(cardKey)) {
+			return false;
+		}
+		mTransport.get(Card.getUrl(mServerUrl, serial, fourDigits), new Transport.Callback() {
+			@Override
+			public void onResponse(int statusCode, final byte[] body) {
+				final BalanceResult result = isSuccess(statusCode) ? BalanceParser.parse(body) : null;
+				final Backoff.ErrorClass error = classify(statusCode, result);
+				if (error != null) {
+					recordError(cardKey, error, listener);
+				} else if (result.isOk()) {
+					mRetryPolicy.reset(cardKey);
+					listener.onResult(result);
+				} else {
+					mRetryPolicy.recordFailure(cardKey, Backoff.ErrorClass.REJECTED);
+					listener.onResult(result);
+				}
+			}
+
+			@Override
+			public void onFailure(final IOException e) {
+				recordError(cardKey, classify(NO_RESPONSE, null), listener);
+			}
+		});
+		return true;
+	}
+
+	private void recordError(final String cardKey, final Backoff.ErrorClass error, final Listener listener) {
+		mRetryPolicy.recordFailure(cardKey, error);
+		listener.onError(error);
+	}
+
+	/**
+	 * Classifies the outcome of a request, shared with the device so both retry the same way.
+	 *
+	 * @param statusCode the HTTP status, or {@link #NO_RESPONSE}
+	 * @param result the parsed body of a successful status, null if it could not be parsed
+	 * @return the error class of a failed request, or null for a success
+	 */
+	public static Backoff.ErrorClass classify(int statusCode, final BalanceResult result) {
+		if (statusCode == NO_RESPONSE) {
+			return Backoff.ErrorClass.NETWORK;
+		}
+		if (!isSuccess(statusCode)) {
+			return Backoff.ErrorClass.SERVER;
+		}
+		return result == null ? Backoff.ErrorClass.MALFORMED : null;
+	}
+
+	private static boolean isSuccess(int statusCode) {
+		return statusCode >= 200 && statusCode < 300;
+	}
+}
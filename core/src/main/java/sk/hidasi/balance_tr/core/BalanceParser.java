@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+/**
+ * Single pass tokenizer of the balance response, e.g. {"result":true,"balance":"12.30"}.
+ * Only the top level "result" and "balance" members are interpreted, all other values are
+ * skipped. No intermediate strings or objects are created, the balance is read directly
+ * into cents.
+ */
+public final class BalanceParser {
+
+	private static final byte[] KEY_RESULT = {'r', 'e', 's', 'u', 'l', 't'};
+	private static final byte[] KEY_BALANCE = {'b', 'a', 'l', 'a', 'n', 'c', 'e'};
+	private static final byte[] LITERAL_TRUE = {'t', 'r', 'u', 'e'};
+	private static final byte[] LITERAL_FALSE = {'f', 'a', 'l', 's', 'e'};
+	private static final byte[] LITERAL_NULL = {'n', 'u', 'l', 'l'};
+
+	private static final int MAX_DEPTH = 32;
+
+	private final byte[] mData;
+	private final int mEnd;
+	private int mPos;
+
+	private BalanceParser(final byte[] data, int offset, int length) {
+		mData = data;
+		mPos = offset;
+		mEnd = offset + length;
+	}
+
+	/**
+	 * @return the parsed result, or null if the response is malformed or the balance is missing
+	 */
+	public static BalanceResult parse(final byte[] data) {
+		return data != null ? parse(data, 0, data.length) : null;
+	}
+
+	public static BalanceResult parse(final byte[] data, int offset, int length) {
+		try {
+			return new BalanceParser(data, offset, length).parseObject();
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private BalanceResult parseObject() {
+		int result = -1;
+		long cents = 0;
+		boolean hasBalance = false;
+
+		expect('{');
+		skipWhitespace();
+		if (peek() != '}') {
+			while (true) {
+				skipWhitespace();
+				expect('"');
+				final int keyStart = mPos;
+				skipStringBody();
+				final int keyEnd = mPos - 1;
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				if (matches(keyStart, keyEnd, KEY_RESULT)) {
+					result = parseBoolean();
+				} else if (matches(keyStart, keyEnd, KEY_BALANCE)) {
+					cents = parseCents();
+					hasBalance = true;
+				} else {
+					skipValue(0);
+				}
+				skipWhitespace();
+				if (peek() == ',') {
+					mPos++;
+				} else {
+					break;
+				}
+			}
+		}
+		expect('}');
+
+		if (result == 0) {
+			return BalanceResult.REJECTED;
+		}
+		if (result == 1 && hasBalance) {
+			return new BalanceResult(BalanceResult.STATUS_OK, cents);
+		}
+		return null;
+	}
+
+	/**
+	 * @return 1 for true, 0 for false
+	 */
+	private int parseBoolean() {
+		if (matchLiteral(LITERAL_TRUE)) {
+			return 1;
+		}
+		if (matchLiteral(LITERAL_FALSE)) {
+			return 0;
+		}
+		throw new NumberFormatException();
+	}
+
+	/**
+	 * Reads a decimal number, either bare or quoted, with '.' or ',' as the decimal separator.
+	 * Digits after the second decimal place are rounded.
+	 */
+	private long parseCents() {
+		final boolean quoted = peek() == '"';
+		if (quoted) {
+			mPos++;
+		}
+		boolean negative = false;
+		if (peek() == '-') {
+			negative = true;
+			mPos++;
+		}
+		long units = 0;
+		int digits = 0;
+		while (isDigit(peek())) {
+			units = units * 10 + (mData[mPos++] - '0');
+			if (++digits > 15) {
+				throw new NumberFormatException();
+			}
+		}
+		if (digits == 0) {
+			throw new NumberFormatException();
+		}
+		long fraction = 0;
+		if (peek() == '.' || peek() == ',') {
+			mPos++;
+			int fractionDigits = 0;
+			while (isDigit(peek())) {
+				final int digit = mData[mPos++] - '0';
+				if (fractionDigits < 2) {
+					fraction = fraction * 10 + digit;
+				} else if (fractionDigits == 2 && digit >= 5) {
+					fraction++;
+				}
+				fractionDigits++;
+			}
+			if (fractionDigits == 1) {
+				fraction *= 10;
+			}
+		}
+		if (quoted) {
+			expect('"');
+		}
+		final long cents = units * 100 + fraction;
+		return negative ? -cents : cents;
+	}
+
+	private void skipValue(int depth) {
+		if (depth > MAX_DEPTH) {
+			throw new NumberFormatException();
+		}
+		final byte c = peek();
+		if (c == '"') {
+			mPos++;
+			skipStringBody();
+		} else if (c == '{' || c == '[') {
+			final char close = c == '{' ? '}' : ']';
+			mPos++;
+			skipWhitespace();
+			if (peek() == close) {
+				mPos++;
+				return;
+			}
+			while (true) {
+				skipWhitespace();
+				if (c == '{') {
+					expect('"');
+					skipStringBody();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+				}
+				skipValue(depth + 1);
+				skipWhitespace();
+				if (peek() == ',') {
+					mPos++;
+				} else {
+					break;
+				}
+			}
+			expect(close);
+		} else if (c == 't') {
+			expectLiteral(LITERAL_TRUE);
+		} else if (c == 'f') {
+			expectLiteral(LITERAL_FALSE);
+		} else if (c == 'n') {
+			expectLiteral(LITERAL_NULL);
+		} else if (c == '-' || isDigit(c)) {
+			mPos++;
+			while (mPos < mEnd && (isDigit(mData[mPos]) || mData[mPos] == '.' || mData[mPos] == 'e'
+					|| mData[mPos] == 'E' || mData[mPos] == '+' || mData[mPos] == '-')) {
+				mPos++;
+			}
+		} else {
+			throw new NumberFormatException();
+		}
+	}
+
+	/**
+	 * Skips the rest of a string, the opening quote has already been read.
+	 */
+	private void skipStringBody() {
+		while (true) {
+			final byte c = peek();
+			mPos++;
+			if (c == '"') {
+				return;
+			}
+			if (c == '\\') {
+				mPos++;
+			}
+		}
+	}
+
+	private boolean matches(int start, int end, final byte[] key) {
+		if (end - start != key.length) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (mData[start + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean matchLiteral(final byte[] literal) {
+		if (mEnd - mPos < literal.length || !matches(mPos, mPos + literal.length, literal)) {
+			return false;
+		}
+		mPos += literal.length;
+		return true;
+	}
+
+	private void expectLiteral(final byte[] literal) {
+		if (!matchLiteral(literal)) {
+			throw new NumberFormatException();
+		}
+	}
+
+	private void expect(char c) {
+		if (peek() != c) {
+			throw new NumberFormatException();
+		}
+		mPos++;
+	}
+
+	private byte peek() {
+		if (mPos >= mEnd) {
+			throw new IndexOutOfBoundsException();
+		}
+		return mData[mPos];
+	}
+
+	private void skipWhitespace() {
+		while (mPos < mEnd) {
+			final byte c = mData[mPos];
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return;
+			}
+			mPos++;
+		}
+	}
+
+	private static boolean isDigit(byte c) {
+		return c >= '0' && c <= '9';
+	}
+}
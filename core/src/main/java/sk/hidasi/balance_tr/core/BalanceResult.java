@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+/**
+ * Balance of a card as returned by the server.
+ */
+public final class BalanceResult {
+
+	/** the server returned the balance of the card */
+	public static final int STATUS_OK = 0;
+	/** the server answered with result=false, e.g. for wrong card numbers or an expired card */
+	public static final int STATUS_REJECTED = 1;
+
+	public static final BalanceResult REJECTED = new BalanceResult(STATUS_REJECTED, 0);
+
+	public final int status;
+	public final long cents;
+
+	public BalanceResult(int status, long cents) {
+		this.status = status;
+		this.cents = cents;
+	}
+
+	public boolean isOk() {
+		return status == STATUS_OK;
+	}
+
+	@Override
+	public String toString() {
+		return isOk() ? "BalanceResult{cents=" + cents + "}" : "BalanceResult{rejected}";
+	}
+
+	/**
+	 * Formats the balance for display like the server sends it, e.g. "12,30€", regardless of
+	 * the locale, as the widget always showed the balance string of the server.
+	 */
+	public static String format(long cents) {
+		final long abs = Math.abs(cents);
+		final long fraction = abs % 100;
+		final StringBuilder text = new StringBuilder(12);
+		if (cents < 0) {
+			text.append('-');
+		}
+		text.append(abs / 100).append(',');
+		if (fraction < 10) {
+			text.append('0');
+		}
+		return text.append(fraction).append('€').toString();
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+/**
+ * Validation of the card numbers and the request of its balance.
+ */
+public final class Card {
+
+	public static final String SERVER_URL = "https://www.trkarta.sk";
+	public static final int SERIAL_LENGTH = 10;
+	public static final int FOUR_DIGITS_LENGTH = 4;
+
+	public static boolean isValid(final String serial, final String fourDigits) {
+		return serial != null && serial.length() == SERIAL_LENGTH && fourDigits != null && fourDigits.length() == FOUR_DIGITS_LENGTH;
+	}
+
+	/**
+	 * Widgets showing the same card share one key, so their refreshes can be coalesced.
+	 */
+	public static String getKey(final String serial, final String fourDigits) {
+		return serial + ':' + fourDigits;
+	}
+
+	public static String getSerial(final String cardKey) {
+		return cardKey.substring(0, cardKey.indexOf(':'));
+	}
+
+	public static String getFourDigits(final String cardKey) {
+		return cardKey.substring(cardKey.indexOf(':') + 1);
+	}
+
+	public static String getUrl(final String serial, final String fourDigits) {
+		return getUrl(SERVER_URL, serial, fourDigits);
+	}
+
+	/**
+	 * @param serverUrl scheme and authority of the server, e.g. of a local stand-in
+	 */
+	public static String getUrl(final String serverUrl, final String serial, final String fourDigits) {
+		return serverUrl + "/balance?card_serial=" + serial + "&pan_4_digits=" + fourDigits;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Storage} kept in memory only, for simulations and tests.
+ */
+public class MemoryStorage implements Storage {
+
+	private final Map<String, Object> mValues = new HashMap<>();
+
+	@Override
+	public synchronized int getInt(final String key, int defaultValue) {
+		final Object value = mValues.get(key);
+		return value != null ? (Integer) value : defaultValue;
+	}
+
+	@Override
+	public synchronized long getLong(final String key, long defaultValue) {
+		final Object value = mValues.get(key);
+		return value != null ? (Long) value : defaultValue;
+	}
+
+	@Override
+	public Editor edit() {
+		return new MemoryEditor();
+	}
+
+	private class MemoryEditor implements Editor {
+
+		// applied in order, null values remove the key
+		private final List<String> mKeys = new ArrayList<>();
+		private final List<Object> mChanges = new ArrayList<>();
+		private boolean mClear;
+
+		@Override
+		public Editor putInt(final String key, int value) {
+			mKeys.add(key);
+			mChanges.add(value);
+			return this;
+		}
+
+		@Override
+		public Editor putLong(final String key, long value) {
+			mKeys.add(key);
+			mChanges.add(value);
+			return this;
+		}
+
+		@Override
+		public Editor remove(final String key) {
+			mKeys.add(key);
+			mChanges.add(null);
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			mClear = true;
+			return this;
+		}
+
+		@Override
+		public void apply() {
+			synchronized (MemoryStorage.this) {
+				if (mClear) {
+					mValues.clear();
+				}
+				for (int i = 0; i < mKeys.size(); i++) {
+					if (mChanges.get(i) != null) {
+						mValues.put(mKeys.get(i), mChanges.get(i));
+					} else {
+						mValues.remove(mKeys.get(i));
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Consecutive failures of each card, kept in memory and persisted to the storage,
+ * so the retry timing of one card never depends on another card and survives
+ * the death of the process. See {@link Backoff} for the retry timing.
+ */
+public class RetryPolicy {
+
+	private static final String PREFIX_FAILURES = "retry_failures_";
+	private static final String PREFIX_ERROR = "retry_error_";
+	private static final String PREFIX_NEXT_RETRY = "retry_next_";
+	private static final String PREFIX_CIRCUIT_OPEN = "retry_circuit_open_";
+
+	public static class Entry {
+		/** consecutive failures of the last error class */
+		public final int failures;
+		public final Backoff.ErrorClass lastError;
+		public final long nextRetryMillis;
+		public final long circuitOpenUntil;
+
+		Entry(int failures, final Backoff.ErrorClass lastError, long nextRetryMillis, long circuitOpenUntil) {
+			this.failures = failures;
+			this.lastError = lastError;
+			this.nextRetryMillis = nextRetryMillis;
+			this.circuitOpenUntil = circuitOpenUntil;
+		}
+
+		public boolean isCircuitOpen(long nowMillis) {
+			return circuitOpenUntil > nowMillis;
+		}
+
+		/**
+		 * Seconds until the card should be asked again, never more than the update interval
+		 * of the widget unless the circuit is open.
+		 */
+		public long getRetrySeconds(long updateInSeconds, long nowMillis) {
+			if (isCircuitOpen(nowMillis)) {
+				return Math.max(1, (circuitOpenUntil - nowMillis) / 1000);
+			}
+			return Math.max(1, Math.min(updateInSeconds, (nextRetryMillis - nowMillis) / 1000));
+		}
+	}
+
+	private final Storage mStorage;
+	private final Clock mClock;
+	private final Random mRandom;
+	private final Map<String, Entry> mEntries = new HashMap<>();
+
+	public RetryPolicy(final Storage storage, final Clock clock, final Random random) {
+		mStorage = storage;
+		mClock = clock;
+		mRandom = random;
+	}
+
+	public synchronized Entry get(final String cardKey) {
+		Entry entry = mEntries.get(cardKey);
+		if (entry == null && !mEntries.containsKey(cardKey)) {
+			final int failures = mStorage.getInt(PREFIX_FAILURES + cardKey, 0);
+			if (failures > 0) {
+				final int error = mStorage.getInt(PREFIX_ERROR + cardKey, 0);
+				entry = new Entry(failures, Backoff.ErrorClass.values()[Math.min(error, Backoff.ErrorClass.values().length - 1)],
+						mStorage.getLong(PREFIX_NEXT_RETRY + cardKey, 0), mStorage.getLong(PREFIX_CIRCUIT_OPEN + cardKey, 0));
+			}
+			mEntries.put(cardKey, entry);
+		}
+		return entry;
+	}
+
+	public synchronized Entry recordFailure(final String cardKey, final Backoff.ErrorClass error) {
+		final Entry previous = get(cardKey);
+		final long nowMillis = mClock.currentTimeMillis();
+		final int failures = getPreviousFailures(previous, error, nowMillis) + 1;
+		final long nextRetryMillis = nowMillis + Backoff.getDelayMillis(error, failures, mRandom);
+		final long circuitOpenUntil = Backoff.shouldOpenCircuit(error, failures) ? nowMillis + Backoff.CIRCUIT_OPEN_MILLIS : 0;
+		final Entry entry = new Entry(failures, error, nextRetryMillis, circuitOpenUntil);
+		mEntries.put(cardKey, entry);
+
+		mStorage.edit()
+				.putInt(PREFIX_FAILURES + cardKey, failures)
+				.putInt(PREFIX_ERROR + cardKey, error.ordinal())
+				.putLong(PREFIX_NEXT_RETRY + cardKey, nextRetryMillis)
+				.putLong(PREFIX_CIRCUIT_OPEN + cardKey, circuitOpenUntil)
+				.apply();
+		return entry;
+	}
+
+	/**
+	 * @return the failures of the same class before this one, halved once the circuit closed,
+	 * so a card which keeps failing opens it again sooner than a fresh one
+	 */
+	private static int getPreviousFailures(final Entry previous, final Backoff.ErrorClass error, long nowMillis) {
+		if (previous == null || previous.lastError != error) {
+			return 0;
+		}
+		if (previous.circuitOpenUntil != 0 && !previous.isCircuitOpen(nowMillis)) {
+			return previous.failures / 2;
+		}
+		return previous.failures;
+	}
+
+	public synchronized void reset(final String cardKey) {
+		if (get(cardKey) == null) {
+			return;
+		}
+		mEntries.put(cardKey, null);
+		mStorage.edit()
+				.remove(PREFIX_FAILURES + cardKey)
+				.remove(PREFIX_ERROR + cardKey)
+				.remove(PREFIX_NEXT_RETRY + cardKey)
+				.remove(PREFIX_CIRCUIT_OPEN + cardKey)
+				.apply();
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+		mStorage.edit().clear().apply();
+	}
+
+	/**
+	 * @return true if the card keeps failing and should not be polled until the circuit closes
+	 */
+	public boolean isCircuitOpen(final String cardKey) {
+		final Entry retry = get(cardKey);
+		return retry != null && retry.isCircuitOpen(mClock.currentTimeMillis());
+	}
+
+	/**
+	 * @return seconds to the next refresh of the card, shorter after a failure unless the circuit is open
+	 */
+	public long getRefreshSeconds(final String cardKey, long updateInSeconds) {
+		final Entry retry = get(cardKey);
+		return retry != null ? retry.getRetrySeconds(updateInSeconds, mClock.currentTimeMillis()) : updateInSeconds;
+	}
+}
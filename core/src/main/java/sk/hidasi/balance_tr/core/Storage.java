@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+/**
+ * Small persistent key-value store, backed by shared preferences on the device.
+ */
+public interface Storage {
+
+	int getInt(String key, int defaultValue);
+
+	long getLong(String key, long defaultValue);
+
+	/**
+	 * @return an editor whose changes are stored together by {@link Editor#apply()}
+	 */
+	Editor edit();
+
+	interface Editor {
+
+		Editor putInt(String key, int value);
+
+		Editor putLong(String key, long value);
+
+		Editor remove(String key);
+
+		Editor clear();
+
+		void apply();
+	}
+}
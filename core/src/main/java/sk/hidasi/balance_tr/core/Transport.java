@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import java.io.IOException;
+
+/**
+ * Sends a GET request and delivers the raw response, on any thread.
+ */
+public interface Transport {
+
+	void get(String url, Callback callback);
+
+	interface Callback {
+
+		/**
+		 * @param statusCode HTTP status of the response, the body may be empty for an error status
+		 */
+		void onResponse(int statusCode, byte[] body);
+
+		/**
+		 * No response was received, e.g. because of a timeout or a lost connection.
+		 */
+		void onFailure(IOException e);
+	}
+}
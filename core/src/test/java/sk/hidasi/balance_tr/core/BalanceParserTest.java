@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class BalanceParserTest {
+
+	private static BalanceResult parse(final String response) {
+		return BalanceParser.parse(response.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void balance() {
+		assertEquals(12345, parse("{\"result\":true,\"balance\":\"123,45\"}").cents);
+		assertEquals(12345, parse("{\"result\":true,\"balance\":\"123.45\"}").cents);
+		assertEquals(10930, parse("{\"balance\":109.3,\"result\":true}").cents);
+	}
+
+	@Test
+	public void skippedFields() {
+		assertEquals(500, parse("{\"result\":true,\"card\":{\"list\":[1,{\"a\":\"}\"}],\"b\":null},\"balance\":5}").cents);
+	}
+
+	@Test
+	public void rejected() {
+		assertFalse(parse("{\"result\":false}").isOk());
+	}
+
+	@Test
+	public void malformed() {
+		assertNull(parse("{\"result\":true,\"bala"));
+		assertNull(parse("{\"result\":true}"));
+		assertNull(parse("<html>"));
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimulationTest {
+
+	private static final int WIDGETS = 1000;
+	private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+	private StandInServer mServer;
+	private UrlTransport mTransport;
+
+	@Before
+	public void setUp() throws Exception {
+		mServer = new StandInServer(1);
+		mTransport = new UrlTransport(32);
+	}
+
+	@After
+	public void tearDown() {
+		mTransport.shutdown();
+		mServer.close();
+	}
+
+	@Test
+	public void healthyServer() throws Exception {
+		// refreshes at 0, 30 and 60 minutes
+		final WidgetSimulation.Report report = new WidgetSimulation(mTransport, mServer.getUrl(), WIDGETS, 0).run(HOUR_MILLIS);
+		assertEquals(3, report.rounds);
+		assertEquals(3 * WIDGETS, report.sent.get());
+		assertEquals(3 * WIDGETS, report.balances.get());
+		assertEquals(0, report.wrongBalances.get());
+	}
+
+	@Test
+	public void faultyServer() throws Exception {
+		mServer.setLatencyMillis(5).setErrorRate(0.2).setMalformedRate(0.1).setRejectRate(0.05);
+		final WidgetSimulation.Report report = new WidgetSimulation(mTransport, mServer.getUrl(), WIDGETS, 0).run(2 * HOUR_MILLIS);
+		assertEquals(0, report.wrongBalances.get());
+		assertTrue(report.getErrors(Backoff.ErrorClass.SERVER) > 0);
+		assertTrue(report.getErrors(Backoff.ErrorClass.MALFORMED) > 0);
+		assertTrue(report.rejected.get() > 0);
+		// failed widgets retry before their next update, successful ones wait for it
+		assertTrue(report.rounds > 5);
+		assertTrue(report.balances.get() >= 5 * WIDGETS / 2);
+		assertEquals(report.sent.get(), mServer.getRequestCount());
+	}
+
+	@Test
+	public void serverOutageKeepsCircuitClosed() throws Exception {
+		// only answers about the card open the circuit, the widgets keep retrying an outage
+		mServer.setErrorRate(1);
+		final WidgetSimulation simulation = new WidgetSimulation(mTransport, mServer.getUrl(), WIDGETS, 0);
+		final WidgetSimulation.Report report = simulation.run(6 * HOUR_MILLIS);
+		assertEquals(report.sent.get(), report.getErrors(Backoff.ErrorClass.SERVER));
+		assertTrue(report.sent.get() >= 12 * WIDGETS);
+		assertEquals(0, simulation.getOpenCircuits());
+	}
+
+	@Test
+	public void expiredCardsOpenCircuit() throws Exception {
+		// rejected cards are retried at most every 30 minutes, the circuit stays open for 12 hours
+		final WidgetSimulation simulation = new WidgetSimulation(mTransport, mServer.getUrl(), WIDGETS, 1);
+		final WidgetSimulation.Report report = simulation.run(6 * HOUR_MILLIS);
+		assertEquals(Backoff.ErrorClass.REJECTED.circuitFailures * WIDGETS, report.sent.get());
+		assertEquals(WIDGETS, simulation.getOpenCircuits());
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in of the /balance endpoint of the card server, with injectable latency,
+ * HTTP errors, result=false answers and malformed JSON. Cards whose serial starts with
+ * {@link #EXPIRED_PREFIX} are always rejected, like expired cards.
+ */
+public class StandInServer implements Closeable {
+
+	public static final char EXPIRED_PREFIX = '9';
+
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor;
+	private final Random mRandom;
+	private final AtomicInteger mRequests = new AtomicInteger();
+
+	private volatile long mLatencyMillis;
+	private volatile double mErrorRate;
+	private volatile double mRejectRate;
+	private volatile double mMalformedRate;
+
+	public StandInServer(long seed) throws IOException {
+		mRandom = new Random(seed);
+		mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		mServer.createContext("/balance", this::handle);
+		mExecutor = Executors.newFixedThreadPool(16);
+		mServer.setExecutor(mExecutor);
+		mServer.start();
+	}
+
+	/**
+	 * @return the server URL to pass to {@link Card#getUrl(String, String, String)}
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + mServer.getAddress().getPort();
+	}
+
+	public StandInServer setLatencyMillis(long latencyMillis) {
+		mLatencyMillis = latencyMillis;
+		return this;
+	}
+
+	/**
+	 * @param errorRate share of the requests answered with 503
+	 */
+	public StandInServer setErrorRate(double errorRate) {
+		mErrorRate = errorRate;
+		return this;
+	}
+
+	/**
+	 * @param rejectRate share of the requests answered with result=false
+	 */
+	public StandInServer setRejectRate(double rejectRate) {
+		mRejectRate = rejectRate;
+		return this;
+	}
+
+	/**
+	 * @param malformedRate share of the requests answered with truncated JSON
+	 */
+	public StandInServer setMalformedRate(double malformedRate) {
+		mMalformedRate = malformedRate;
+		return this;
+	}
+
+	public int getRequestCount() {
+		return mRequests.get();
+	}
+
+	/**
+	 * @return the balance the server reports for the card
+	 */
+	public static long getCents(final String serial) {
+		return Math.floorMod(serial.hashCode(), 100000);
+	}
+
+	@Override
+	public void close() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		mRequests.incrementAndGet();
+		try {
+			if (mLatencyMillis > 0) {
+				Thread.sleep(mLatencyMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final String query = exchange.getRequestURI().getQuery();
+		final String serial = getParameter(query, "card_serial");
+		final String fourDigits = getParameter(query, "pan_4_digits");
+		final double dice;
+		synchronized (mRandom) {
+			dice = mRandom.nextDouble();
+		}
+
+		final String body;
+		if (dice < mErrorRate) {
+			exchange.sendResponseHeaders(503, -1);
+			exchange.close();
+			return;
+		} else if (dice < mErrorRate + mMalformedRate) {
+			body = "{\"result\":true,\"bala";
+		} else if (dice < mErrorRate + mMalformedRate + mRejectRate || !Card.isValid(serial, fourDigits)
+				|| serial.charAt(0) == EXPIRED_PREFIX) {
+			body = "{\"result\":false}";
+		} else {
+			final long cents = getCents(serial);
+			body = String.format("{\"result\":true,\"balance\":\"%d.%02d\"}", cents / 100, cents % 100);
+		}
+		final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String getParameter(final String query, final String name) {
+		if (query == null) {
+			return null;
+		}
+		for (String parameter : query.split("&")) {
+			if (parameter.startsWith(name + "=")) {
+				return parameter.substring(name.length() + 1);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link Transport} on top of {@link HttpURLConnection} with a fixed pool of threads.
+ */
+public class UrlTransport implements Transport {
+
+	private static final int TIMEOUT_MILLIS = 10000;
+
+	private final ExecutorService mExecutor;
+
+	public UrlTransport(int threads) {
+		mExecutor = Executors.newFixedThreadPool(threads);
+	}
+
+	@Override
+	public void get(final String url, final Callback callback) {
+		mExecutor.execute(() -> {
+			final int statusCode;
+			final byte[] body;
+			try {
+				final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+				connection.setConnectTimeout(TIMEOUT_MILLIS);
+				connection.setReadTimeout(TIMEOUT_MILLIS);
+				try {
+					statusCode = connection.getResponseCode();
+					final InputStream stream = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+					body = stream != null ? readFully(stream) : new byte[0];
+				} finally {
+					connection.disconnect();
+				}
+			} catch (IOException e) {
+				callback.onFailure(e);
+				return;
+			}
+			callback.onResponse(statusCode, body);
+		});
+	}
+
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	private static byte[] readFully(final InputStream stream) throws IOException {
+		try (InputStream in = stream) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+			final byte[] buffer = new byte[1024];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 Robert Hidasi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.hidasi.balance_tr.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Drives simulated widgets through the {@link BalanceClient} and {@link RetryPolicy} against
+ * a {@link StandInServer}. The requests are real HTTP requests, the clock is simulated: each
+ * round advances it to the earliest scheduled refresh and refreshes every widget due within
+ * {@link #WINDOW_MILLIS}, like the alarm window on the device.
+ * <p>
+ * Arguments: widgets, simulated hours, latency in ms, error rate, reject rate, malformed rate.
+ */
+public class WidgetSimulation {
+
+	static final long UPDATE_SECONDS = 30 * 60;
+	static final long WINDOW_MILLIS = 60 * 1000;
+
+	static class SimulatedClock implements Clock {
+		volatile long nowMillis = 1577836800000L;
+
+		@Override
+		public long currentTimeMillis() {
+			return nowMillis;
+		}
+	}
+
+	static class Report {
+		final AtomicInteger sent = new AtomicInteger();
+		final AtomicInteger skipped = new AtomicInteger();
+		final AtomicInteger balances = new AtomicInteger();
+		final AtomicInteger rejected = new AtomicInteger();
+		final AtomicInteger wrongBalances = new AtomicInteger();
+		final AtomicIntegerArray errors = new AtomicIntegerArray(Backoff.ErrorClass.values().length);
+		int rounds;
+		long elapsedMillis;
+
+		int getErrors(final Backoff.ErrorClass error) {
+			return errors.get(error.ordinal());
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder report = new StringBuilder();
+			report.append("sent=").append(sent).append(" skipped=").append(skipped)
+					.append(" balances=").append(balances).append(" rejected=").append(rejected)
+					.append(" wrongBalances=").append(wrongBalances);
+			for (Backoff.ErrorClass error : Backoff.ErrorClass.values()) {
+				report.append(" errors.").append(error.name().toLowerCase()).append('=').append(getErrors(error));
+			}
+			report.append(" rounds=").append(rounds).append(" elapsed=").append(elapsedMillis).append("ms");
+			return report.toString();
+		}
+	}
+
+	private final String[] mSerials;
+	private final long[] mNextRefreshMillis;
+	private final SimulatedClock mClock = new SimulatedClock();
+	private final BalanceClient mClient;
+
+	/**
+	 * @param expiredShare share of the widgets showing an expired card
+	 */
+	WidgetSimulation(final Transport transport, final String serverUrl, int widgets, double expiredShare) {
+		final Random random = new Random(widgets);
+		mSerials = new String[widgets];
+		for (int i = 0; i < widgets; i++) {
+			final char prefix = random.nextDouble() < expiredShare ? StandInServer.EXPIRED_PREFIX : '1';
+			mSerials[i] = prefix + String.format("%09d", i);
+		}
+		mNextRefreshMillis = new long[widgets];
+		Arrays.fill(mNextRefreshMillis, mClock.nowMillis);
+		mClient = new BalanceClient(transport, new RetryPolicy(new MemoryStorage(), mClock, random), serverUrl);
+	}
+
+	/**
+	 * Runs the rounds of the given simulated time span, starting with a refresh of all widgets.
+	 */
+	Report run(long durationMillis) throws InterruptedException {
+		final Report report = new Report();
+		final long endMillis = mClock.nowMillis + durationMillis;
+		final long wallStart = System.nanoTime();
+		while (mClock.nowMillis <= endMillis) {
+			runRound(report);
+			report.rounds++;
+			mClock.nowMillis = Arrays.stream(mNextRefreshMillis).min().orElse(endMillis + 1);
+		}
+		// the state at the end of the span, not at the next refresh
+		mClock.nowMillis = endMillis;
+		report.elapsedMillis = (System.nanoTime() - wallStart) / 1000000;
+		return report;
+	}
+
+	int getOpenCircuits() {
+		int count = 0;
+		for (String serial : mSerials) {
+			if (mClient.getRetryPolicy().isCircuitOpen(Card.getKey(serial, getFourDigits(serial)))) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static String getFourDigits(final String serial) {
+		return serial.substring(serial.length() - 4);
+	}
+
+	private void runRound(final Report report) throws InterruptedException {
+		final long nowMillis = mClock.nowMillis;
+		int due = 0;
+		for (long next : mNextRefreshMillis) {
+			if (next <= nowMillis + WINDOW_MILLIS) {
+				due++;
+			}
+		}
+		final CountDownLatch done = new CountDownLatch(due);
+		for (int i = 0; i < mSerials.length; i++) {
+			if (mNextRefreshMillis[i] > nowMillis + WINDOW_MILLIS) {
+				continue;
+			}
+			final int widget = i;
+			final String serial = mSerials[i];
+			final String fourDigits = getFourDigits(serial);
+			final String cardKey = Card.getKey(serial, fourDigits);
+			final boolean sent = mClient.fetch(serial, fourDigits, false, new BalanceClient.Listener() {
+				@Override
+				public void onResult(final BalanceResult result) {
+					if (!result.isOk()) {
+						report.rejected.incrementAndGet();
+					} else if (result.cents != StandInServer.getCents(serial)) {
+						report.wrongBalances.incrementAndGet();
+					} else {
+						report.balances.incrementAndGet();
+					}
+					scheduleNext(widget, cardKey, nowMillis);
+					done.countDown();
+				}
+
+				@Override
+				public void onError(final Backoff.ErrorClass error) {
+					report.errors.incrementAndGet(error.ordinal());
+					scheduleNext(widget, cardKey, nowMillis);
+					done.countDown();
+				}
+			});
+			if (sent) {
+				report.sent.incrementAndGet();
+			} else {
+				report.skipped.incrementAndGet();
+				scheduleNext(widget, cardKey, nowMillis);
+				done.countDown();
+			}
+		}
+		if (!done.await(5, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("Round did not finish, " + done.getCount() + " widgets waiting");
+		}
+	}
+
+	private void scheduleNext(int widget, final String cardKey, long nowMillis) {
+		// each widget writes only its own slot, the latch publishes it to the next round
+		mNextRefreshMillis[widget] = nowMillis + 1000 * mClient.getRetryPolicy().getRefreshSeconds(cardKey, UPDATE_SECONDS);
+	}
+
+	public static void main(final String[] args) throws IOException, InterruptedException {
+		final int widgets = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final long hours = args.length > 1 ? Long.parseLong(args[1]) : 24;
+		try (StandInServer server = new StandInServer(1)) {
+			server.setLatencyMillis(args.length > 2 ? Long.parseLong(args[2]) : 20)
+					.setErrorRate(args.length > 3 ? Double.parseDouble(args[3]) : 0.05)
+					.setRejectRate(args.length > 4 ? Double.parseDouble(args[4]) : 0.01)
+					.setMalformedRate(args.length > 5 ? Double.parseDouble(args[5]) : 0.01);
+			final UrlTransport transport = new UrlTransport(32);
+			try {
+				final Report report = new WidgetSimulation(transport, server.getUrl(), widgets, 0.02).run(hours * 60 * 60 * 1000);
+				System.out.println(report + " serverRequests=" + server.getRequestCount());
+			} finally {
+				transport.shutdown();
+			}
+		}
+	}
+}